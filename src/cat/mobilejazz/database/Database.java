@@ -4,15 +4,39 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.database.sqlite.SQLiteDatabase;
 import cat.mobilejazz.database.content.Changes;
+import cat.mobilejazz.utilities.CompatibilityUtils;
 import cat.mobilejazz.utilities.debug.Debug;
 
 public class Database {
 
 	private Map<String, Table> tables;
 	private List<View> views;
+	private WalOptions walOptions = WalOptions.NONE;
+
+	/**
+	 * Whether a materialized view was out of date when {@link ViewState} was
+	 * last read, and the version of the view states of its database at that
+	 * time.
+	 */
+	private static class DirtyFlag {
+
+		private final long version;
+		private final boolean dirty;
+
+		public DirtyFlag(long version, boolean dirty) {
+			this.version = version;
+			this.dirty = dirty;
+		}
+
+	}
+
+	private final ConcurrentHashMap<String, AtomicLong> viewStateVersions = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<String, DirtyFlag> dirtyFlags = new ConcurrentHashMap<String, DirtyFlag>();
 
 	public static Database newInstance(Class<?> contract, View... databaseViews) {
 		try {
@@ -83,6 +107,18 @@ public class Database {
 
 	}
 
+	public WalOptions getWalOptions() {
+		return walOptions;
+	}
+
+	/**
+	 * Sets the journal settings that are applied whenever the database is
+	 * opened by a {@link cat.mobilejazz.database.content.DataProvider}.
+	 */
+	public void setWalOptions(WalOptions walOptions) {
+		this.walOptions = walOptions;
+	}
+
 	public Iterable<Table> getTables() {
 		return tables.values();
 	}
@@ -131,15 +167,167 @@ public class Database {
 			Debug.debug("CREATING " + v.getName());
 			v.create(db);
 		}
+		for (Table t : getTables()) {
+			for (View v : t.getReferencedBy()) {
+				v.createTriggers(db, t);
+			}
+		}
+	}
+
+	/**
+	 * Recomputes a materialized view if a table it depends on has changed
+	 * since the last refresh. Materialized views it depends on are refreshed
+	 * first.
+	 *
+	 * @return {@code true} if the view has been recomputed.
+	 */
+	public boolean refresh(SQLiteDatabase db, View view) {
+		if (!view.isMaterialized() || !ViewState.isDirty(db, view.getName())) {
+			return false;
+		}
+		CompatibilityUtils.beginTransactionNonExclusive(db);
+		try {
+			// another thread may have refreshed it in the meantime:
+			if (!ViewState.isDirty(db, view.getName())) {
+				return false;
+			}
+			for (String dependency : view.getDependencies()) {
+				View v = getView(dependency);
+				if (v != null) {
+					refresh(db, v);
+				}
+			}
+			long startTime = System.currentTimeMillis();
+			view.refresh(db);
+			db.setTransactionSuccessful();
+			Debug.debug("Refreshed %s in %d ms", view.getName(), System.currentTimeMillis() - startTime);
+			return true;
+		} finally {
+			db.endTransaction();
+			// the kept flags are read again, whether the refresh succeeded or
+			// not:
+			invalidateViewStates(db);
+		}
+	}
+
+	private AtomicLong getViewStateVersion(SQLiteDatabase db) {
+		AtomicLong version = viewStateVersions.get(db.getPath());
+		if (version == null) {
+			version = new AtomicLong();
+			AtomicLong previous = viewStateVersions.putIfAbsent(db.getPath(), version);
+			if (previous != null) {
+				version = previous;
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * Makes {@link #getReadableName(SQLiteDatabase, View)} read the state of
+	 * the materialized views of the given database again. This happens on
+	 * every refresh. Code that changes tables outside of the
+	 * {@link cat.mobilejazz.database.content.DataProvider} and does not
+	 * refresh afterwards has to call it.
+	 */
+	public void invalidateViewStates(SQLiteDatabase db) {
+		getViewStateVersion(db).incrementAndGet();
+	}
+
+	/**
+	 * @return {@code true} if the given materialized view is out of date.
+	 *         {@link ViewState} is only read again after
+	 *         {@link #invalidateViewStates(SQLiteDatabase)}.
+	 */
+	private boolean isDirty(SQLiteDatabase db, View view) {
+		AtomicLong version = getViewStateVersion(db);
+		long v = version.get();
+		String key = db.getPath() + '/' + view.getName();
+		DirtyFlag flag = dirtyFlags.get(key);
+		if (flag != null && flag.version == v) {
+			return flag.dirty;
+		}
+		boolean dirty = ViewState.isDirty(db, view.getName());
+		// the uncommitted state of the calling thread must not be kept, nor a
+		// state that has been invalidated in the meantime:
+		if (!db.inTransaction() && version.get() == v) {
+			dirtyFlags.put(key, new DirtyFlag(v, dirty));
+		}
+		return dirty;
+	}
+
+	/**
+	 * @return {@code true} if the given view or a view it depends on,
+	 *         directly or through other views, is a materialized view that is
+	 *         out of date.
+	 */
+	private boolean isOutOfDate(SQLiteDatabase db, View view) {
+		if (view.isMaterialized() && isDirty(db, view)) {
+			return true;
+		}
+		for (String dependency : view.getDependencies()) {
+			View v = getView(dependency);
+			if (v != null && isOutOfDate(db, v)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the name to read the given view from: the backing table of a
+	 *         materialized view that is up to date, otherwise the view that
+	 *         computes its rows. A view is also read from its source view if
+	 *         a materialized view it depends on is out of date, which however
+	 *         still reads that view's backing table. The
+	 *         {@link cat.mobilejazz.database.content.DataProvider} refreshes
+	 *         the views as soon as a write has been committed, so this lasts
+	 *         only until the refresh has completed. This does not refresh the
+	 *         view, so it can be used on a read-only connection.
+	 */
+	public String getReadableName(SQLiteDatabase db, View view) {
+		if (view.isMaterialized() && isOutOfDate(db, view)) {
+			return view.getSourceName();
+		} else {
+			return view.getName();
+		}
+	}
+
+	/**
+	 * Recomputes all materialized views that are out of date.
+	 */
+	public void refreshMaterializedViews(SQLiteDatabase db) {
+		for (View v : getViews()) {
+			refresh(db, v);
+		}
+	}
+
+	/**
+	 * Creates the declared indexes of all tables that do not exist yet. This
+	 * allows to add indexes to databases that have been created by a previous
+	 * version.
+	 */
+	public void createIndexes(SQLiteDatabase db) {
+		for (Table t : getTables()) {
+			t.createIndexes(db);
+		}
+		for (View v : getViews()) {
+			v.createIndexes(db);
+		}
 	}
 
 	public void dropAll(SQLiteDatabase db) {
+		for (Table t : getTables()) {
+			for (View v : t.getReferencedBy()) {
+				v.dropTriggers(db, t);
+			}
+		}
 		for (Table t : getTables()) {
 			db.execSQL("DROP TABLE IF EXISTS " + t.getName());
 		}
 		for (View v : getViews()) {
-			db.execSQL("DROP VIEW IF EXISTS " + v.getName());
+			v.drop(db);
 		}
+		db.execSQL("DROP TABLE IF EXISTS " + ViewState.TABLE_NAME);
 	}
 
 	public Map<String, Object> getDeclaredValues() {
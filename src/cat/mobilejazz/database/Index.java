@@ -0,0 +1,122 @@
+package cat.mobilejazz.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.text.TextUtils;
+import cat.mobilejazz.utilities.debug.Debug;
+
+/**
+ * An index on one or more columns of a {@link Table}.
+ */
+public class Index {
+
+	/**
+	 * The first platform version that ships SQLite 3.8, which supports partial
+	 * indexes (Lollipop).
+	 */
+	private static final int SDK_PARTIAL_INDEXES = 21;
+
+	private String name;
+	private String table;
+	private String[] columns;
+	private boolean unique;
+	private String where;
+
+	public Index(String name, String table, String[] columns) {
+		this(name, table, columns, false, null);
+	}
+
+	/**
+	 * @param unique
+	 *            whether to create a {@code UNIQUE} index.
+	 * @param where
+	 *            the condition of a partial index or {@code null}.
+	 */
+	public Index(String name, String table, String[] columns, boolean unique, String where) {
+		this.table = table;
+		this.columns = columns;
+		this.unique = unique;
+		this.where = (TextUtils.isEmpty(where)) ? null : where;
+		if (TextUtils.isEmpty(name)) {
+			StringBuilder n = new StringBuilder(table);
+			for (String c : columns) {
+				n.append('_').append(getColumnName(c));
+			}
+			this.name = n.append("_idx").toString();
+		} else {
+			this.name = name;
+		}
+	}
+
+	private static String getColumnName(String column) {
+		// strip a trailing sort order:
+		return column.trim().split("\\s+")[0];
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public String[] getColumns() {
+		return columns;
+	}
+
+	public boolean isUnique() {
+		return unique;
+	}
+
+	/**
+	 * @return the condition of a partial index or {@code null}.
+	 */
+	public String getWhere() {
+		return where;
+	}
+
+	/**
+	 * @return {@code true} if lookups by the given columns can use this
+	 *         index, i.e. they are a prefix of its columns and the index is not
+	 *         partial.
+	 */
+	public boolean covers(String... columns) {
+		if (where != null || columns.length > this.columns.length) {
+			return false;
+		}
+		for (int i = 0; i < columns.length; ++i) {
+			if (!getColumnName(this.columns[i]).equalsIgnoreCase(columns[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the index unless it exists already. Before SQLite 3.8, a partial
+	 * index is created as a full index, which serves the same queries, except
+	 * for a unique one: its constraint would also apply to the other rows, so
+	 * it is not created at all.
+	 */
+	public void create(SQLiteDatabase db) {
+		boolean partial = where != null && Build.VERSION.SDK_INT >= SDK_PARTIAL_INDEXES;
+		if (where != null && !partial && unique) {
+			Debug.warning("Partial index %s is not supported on this platform", name);
+			return;
+		}
+		StringBuilder sql = new StringBuilder();
+		sql.append("CREATE ");
+		if (unique) {
+			sql.append("UNIQUE ");
+		}
+		sql.append("INDEX IF NOT EXISTS ").append(name).append(" ON ").append(table).append(" (")
+				.append(TextUtils.join(", ", columns)).append(")");
+		if (partial) {
+			sql.append(" WHERE ").append(where);
+		}
+		Debug.verbose("Creating Index: \n" + sql);
+		db.execSQL(sql.toString());
+	}
+
+}
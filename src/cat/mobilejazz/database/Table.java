@@ -3,14 +3,21 @@ package cat.mobilejazz.database;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
+import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
+import cat.mobilejazz.database.annotation.ContentHash;
 import cat.mobilejazz.database.annotation.CreationDate;
 import cat.mobilejazz.database.annotation.EntityContextHelper;
+import cat.mobilejazz.database.annotation.Indexes;
 import cat.mobilejazz.database.annotation.Local;
 import cat.mobilejazz.database.annotation.ParentId;
+import cat.mobilejazz.database.annotation.SetBasedMerge;
 import cat.mobilejazz.database.annotation.SyncId;
 import cat.mobilejazz.database.annotation.TableName;
 import cat.mobilejazz.database.annotation.UID;
@@ -21,12 +28,33 @@ import cat.mobilejazz.utilities.format.TreeObject;
 
 public class Table implements TreeObject {
 
+	/**
+	 * The hidden column of tables marked with {@link ContentHash}.
+	 */
+	public static final String COLUMN_SYNC_HASH = "_sync_hash";
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
 	/**
 	 * If this is set, no changes are being recorded.
 	 */
 	private boolean isLocal;
 
+	/**
+	 * If this is set, data from the server is merged with set-based
+	 * statements.
+	 */
+	private boolean isSetBasedMerge;
+
+	/**
+	 * The names of the columns that are hashed, in ascending order, or
+	 * {@code null} if the table is not marked with {@link ContentHash}.
+	 */
+	private String[] hashColumns;
+
 	private Collection<View> referencedBy;
+	private List<Index> indexes;
 	private Map<String, Column> columns;
 	private String name;
 	private String declaredName;
@@ -70,6 +98,11 @@ public class Table implements TreeObject {
 		referencedBy = new ArrayList<View>();
 
 		isLocal = tableDescription.isAnnotationPresent(Local.class);
+		isSetBasedMerge = tableDescription.isAnnotationPresent(SetBasedMerge.class);
+
+		// the table name may be declared after the columns:
+		Map<String, cat.mobilejazz.database.annotation.Index> columnIndexes;
+		columnIndexes = new HashMap<String, cat.mobilejazz.database.annotation.Index>();
 
 		for (Field f : tableDescription.getFields()) {
 			if (f.isAnnotationPresent(TableName.class)) {
@@ -104,6 +137,12 @@ public class Table implements TreeObject {
 						defaultValue, parser, f.getAnnotation(UID.class) != null, this);
 				columns.put(columnName, c);
 
+				cat.mobilejazz.database.annotation.Index columnIndex = f
+						.getAnnotation(cat.mobilejazz.database.annotation.Index.class);
+				if (columnIndex != null) {
+					columnIndexes.put(columnName, columnIndex);
+				}
+
 				if (f.getAnnotation(SyncId.class) != null) {
 					setSyncIdColumn(c);
 				}
@@ -121,6 +160,76 @@ public class Table implements TreeObject {
 		if (name == null) {
 			throw new NoSuchFieldException();
 		}
+
+		if (tableDescription.isAnnotationPresent(ContentHash.class)) {
+			List<String> hashed = new ArrayList<String>();
+			for (Column c : columns.values()) {
+				if (c.getType() != Type.DELEGATE
+						&& (c.getStorage() == Storage.REMOTE || c.getStorage() == Storage.INFO)) {
+					hashed.add(c.getName());
+				}
+			}
+			Collections.sort(hashed);
+			hashColumns = hashed.toArray(new String[hashed.size()]);
+		}
+
+		indexes = new ArrayList<Index>();
+		cat.mobilejazz.database.annotation.Index index = tableDescription
+				.getAnnotation(cat.mobilejazz.database.annotation.Index.class);
+		if (index != null) {
+			addIndex(index, index.columns());
+		}
+		Indexes indexList = tableDescription.getAnnotation(Indexes.class);
+		if (indexList != null) {
+			for (cat.mobilejazz.database.annotation.Index i : indexList.value()) {
+				addIndex(i, i.columns());
+			}
+		}
+		for (Map.Entry<String, cat.mobilejazz.database.annotation.Index> e : columnIndexes.entrySet()) {
+			String[] indexColumns = e.getValue().columns();
+			addIndex(e.getValue(), (indexColumns.length > 0) ? indexColumns : new String[] { e.getKey() });
+		}
+
+		// the merge of a sync sorts by the sync id and deletes by parent:
+		if (isIndexable(syncId)) {
+			addImplicitIndex(syncId.getName());
+		}
+		if (isIndexable(parentId)) {
+			if (isIndexable(syncId)) {
+				addImplicitIndex(parentId.getName(), syncId.getName());
+			} else {
+				addImplicitIndex(parentId.getName());
+			}
+		}
+	}
+
+	private void addIndex(cat.mobilejazz.database.annotation.Index index, String[] indexColumns) {
+		if (indexColumns.length == 0) {
+			throw new IllegalArgumentException("Index on table " + name + " has no columns");
+		}
+		indexes.add(new Index(index.name(), name, indexColumns, index.unique(), index.where()));
+	}
+
+	/**
+	 * @return {@code true} if the column is stored in this table and is not
+	 *         the primary key, which is indexed anyway.
+	 */
+	private static boolean isIndexable(Column c) {
+		return c != null && c.getType() != Type.DELEGATE && c.getConstraint() != null
+				&& !c.getConstraint().toUpperCase(Locale.US).contains("PRIMARY KEY");
+	}
+
+	/**
+	 * Adds an index on the given columns unless a declared index can be used
+	 * for them.
+	 */
+	private void addImplicitIndex(String... indexColumns) {
+		for (Index i : indexes) {
+			if (i.covers(indexColumns)) {
+				return;
+			}
+		}
+		indexes.add(new Index(null, name, indexColumns));
 	}
 
 	public void create(SQLiteDatabase db) {
@@ -135,11 +244,30 @@ public class Table implements TreeObject {
 			}
 		}
 
+		if (hasContentHash()) {
+			result.append(COLUMN_SYNC_HASH).append(" INTEGER, ");
+		}
+
 		result.delete(result.length() - 2, result.length()).append(");");
 
 		Debug.verbose("Creating Table: \n" + result.toString());
 
 		db.execSQL(result.toString());
+
+		createIndexes(db);
+	}
+
+	/**
+	 * Creates the declared indexes of this table that do not exist yet.
+	 */
+	public void createIndexes(SQLiteDatabase db) {
+		for (Index i : indexes) {
+			i.create(db);
+		}
+	}
+
+	public Iterable<Index> getIndexes() {
+		return indexes;
 	}
 
 	/**
@@ -184,6 +312,92 @@ public class Table implements TreeObject {
 		return isLocal;
 	}
 
+	/**
+	 * Tables that are marked with {@link SetBasedMerge} are merged with data
+	 * from the server by a few set-based statements over a temporary table.
+	 * 
+	 * @return {@code true} if the table is marked with {@link SetBasedMerge}.
+	 */
+	public boolean isSetBasedMerge() {
+		return isSetBasedMerge;
+	}
+
+	/**
+	 * Tables that are marked with {@link ContentHash} have the additional
+	 * column {@link #COLUMN_SYNC_HASH}.
+	 * 
+	 * @return {@code true} if the table is marked with {@link ContentHash}.
+	 */
+	public boolean hasContentHash() {
+		return hashColumns != null;
+	}
+
+	private static long hash(long hash, long value) {
+		for (int i = 0; i < 8; ++i) {
+			hash ^= (value >>> (i * 8)) & 0xffL;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Computes the 64 bit FNV-1a hash of the remote and info columns of the
+	 * given values. Integral and floating point numbers are hashed by value,
+	 * regardless of their boxed type. Columns that are missing hash
+	 * differently from columns that are {@code null}.
+	 * 
+	 * @param values
+	 *            The values of a row of this table.
+	 * @return the hash of the values.
+	 */
+	public long getContentHash(ContentValues values) {
+		long hash = FNV_OFFSET_BASIS;
+		for (String column : hashColumns) {
+			hash = hash(hash, column);
+			if (!values.containsKey(column)) {
+				hash = hash(hash, 0L);
+				continue;
+			}
+			Object value = values.get(column);
+			if (value == null) {
+				hash = hash(hash, 1L);
+			} else if (value instanceof String) {
+				hash = hash(hash, 2L);
+				hash = hash(hash, ((String) value).length());
+				hash = hash(hash, (String) value);
+			} else if (value instanceof Double || value instanceof Float) {
+				hash = hash(hash, 3L);
+				hash = hash(hash, Double.doubleToLongBits(((Number) value).doubleValue()));
+			} else if (value instanceof Number) {
+				hash = hash(hash, 4L);
+				hash = hash(hash, ((Number) value).longValue());
+			} else if (value instanceof Boolean) {
+				hash = hash(hash, 4L);
+				hash = hash(hash, ((Boolean) value) ? 1L : 0L);
+			} else if (value instanceof byte[]) {
+				byte[] bytes = (byte[]) value;
+				hash = hash(hash, 5L);
+				hash = hash(hash, bytes.length);
+				for (byte b : bytes) {
+					hash = (hash ^ (b & 0xffL)) * FNV_PRIME;
+				}
+			} else {
+				hash = hash(hash, 6L);
+				hash = hash(hash, value.hashCode());
+			}
+		}
+		return hash;
+	}
+
 	public String getDeclaredName() {
 		return declaredName;
 	}
@@ -193,7 +407,10 @@ public class Table implements TreeObject {
 	}
 
 	public void addReferencedBy(View v) {
-		referencedBy.add(v);
+		// a view may reach the same table through several other views:
+		if (!referencedBy.contains(v)) {
+			referencedBy.add(v);
+		}
 	}
 
 	public boolean hasColumn(String columnName) {
@@ -1,24 +1,217 @@
 package cat.mobilejazz.database;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
 
 public abstract class View {
 
 	private String name;
+	private boolean materialized;
+	private String keyTable;
+	private List<Index> indexes;
 
 	public View(String name) {
 		this.name = name;
+		this.indexes = new ArrayList<Index>();
 	}
 
 	public abstract Iterable<String> getDependencies();
 
 	public abstract String getSqlSelectStatement();
 
+	/**
+	 * Stores the result of this view in a table of the same name, so reading
+	 * it does not execute its joins or unions again. The select statement is
+	 * kept as the view returned by {@link #getSourceName()}. Any change to a
+	 * table the view depends on marks the view as out of date. The
+	 * {@link cat.mobilejazz.database.content.DataProvider} recomputes it once
+	 * the write or the update from the server has been committed (see
+	 * {@link Database#refreshMaterializedViews(SQLiteDatabase)}). Until then,
+	 * queries read the source view instead (see
+	 * {@link Database#getReadableName(SQLiteDatabase, View)}).
+	 *
+	 * @return this view.
+	 */
+	public View materialize() {
+		return materialize(null);
+	}
+
+	/**
+	 * Like {@link #materialize()}, but changes to the given table are applied
+	 * row by row instead of marking the whole view as out of date. This
+	 * requires that each row of the view stems from exactly one row of the
+	 * table and has the same {@link BaseColumns#_ID}, e.g. the first table of
+	 * a {@link SingleSelectView}.
+	 *
+	 * @param keyTable
+	 *            The table whose {@link BaseColumns#_ID} identifies the rows of
+	 *            this view, or {@code null}.
+	 * @return this view.
+	 */
+	public View materialize(String keyTable) {
+		this.materialized = true;
+		this.keyTable = keyTable;
+		return this;
+	}
+
+	public boolean isMaterialized() {
+		return materialized;
+	}
+
+	/**
+	 * Declares an index on the backing table of a materialized view. The
+	 * indexes of a plain view are ignored.
+	 *
+	 * @param columns
+	 *            The columns of the index, optionally followed by a sort order.
+	 * @return this view.
+	 */
+	public View index(String... columns) {
+		return index(null, false, columns);
+	}
+
+	/**
+	 * Like {@link #index(String...)}.
+	 *
+	 * @param indexName
+	 *            The name of the index or {@code null} to derive it from the
+	 *            columns.
+	 * @param unique
+	 *            whether to create a {@code UNIQUE} index.
+	 * @return this view.
+	 */
+	public View index(String indexName, boolean unique, String... columns) {
+		if (columns.length == 0) {
+			throw new IllegalArgumentException("Index on view " + name + " has no columns");
+		}
+		indexes.add(new Index(indexName, name, columns, unique, null));
+		return this;
+	}
+
+	public Iterable<Index> getIndexes() {
+		return indexes;
+	}
+
+	/**
+	 * Creates the declared indexes of a materialized view that do not exist
+	 * yet.
+	 */
+	public void createIndexes(SQLiteDatabase db) {
+		if (materialized && "table".equals(getType(db, name))) {
+			for (Index i : indexes) {
+				i.create(db);
+			}
+		}
+	}
+
+	/**
+	 * @return the table that is maintained row by row or {@code null}.
+	 */
+	public String getKeyTable() {
+		return keyTable;
+	}
+
+	/**
+	 * @return the name of the plain view that computes the rows of a
+	 *         materialized view.
+	 */
+	public String getSourceName() {
+		return name + "_source";
+	}
+
 	public void create(SQLiteDatabase db) {
 		StringBuilder s = new StringBuilder();
-		s.append("CREATE VIEW ").append(name).append(" AS ");
+		s.append("CREATE VIEW ").append(materialized ? getSourceName() : name).append(" AS ");
 		s.append(getSqlSelectStatement());
 		db.execSQL(s.toString());
+		if (materialized) {
+			db.execSQL("CREATE TABLE " + name + " AS SELECT * FROM " + getSourceName() + " WHERE 0");
+			if (keyTable != null) {
+				db.execSQL(String.format("CREATE INDEX %s_key ON %s (%s)", name, name, BaseColumns._ID));
+			}
+			createIndexes(db);
+			ViewState.ensureTable(db);
+			// the tables may already contain data:
+			ViewState.setDirty(db, name, true);
+		}
+	}
+
+	private void createTrigger(SQLiteDatabase db, Table table, String event, String statements) {
+		db.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS %s_%s_%s AFTER %s ON %s BEGIN %s END", name,
+				table.getName(), event.toLowerCase(Locale.US), event, table.getName(), statements));
+	}
+
+	/**
+	 * Creates the triggers that keep a materialized view up to date when the
+	 * given table changes.
+	 */
+	public void createTriggers(SQLiteDatabase db, Table table) {
+		if (!materialized) {
+			return;
+		}
+		if (table.getName().equals(keyTable)) {
+			String delete = String.format("DELETE FROM %s WHERE %s IN (%%s); ", name, BaseColumns._ID);
+			String insert = String.format("INSERT INTO %s SELECT * FROM %s WHERE %s = NEW.%s; ", name,
+					getSourceName(), BaseColumns._ID, BaseColumns._ID);
+			createTrigger(db, table, "INSERT", String.format(delete, "NEW." + BaseColumns._ID) + insert);
+			createTrigger(db, table, "UPDATE",
+					String.format(delete, "OLD." + BaseColumns._ID + ", NEW." + BaseColumns._ID) + insert);
+			createTrigger(db, table, "DELETE", String.format(delete, "OLD." + BaseColumns._ID));
+		} else {
+			String markDirty = ViewState.getMarkDirtyStatement(name) + "; ";
+			createTrigger(db, table, "INSERT", markDirty);
+			createTrigger(db, table, "UPDATE", markDirty);
+			createTrigger(db, table, "DELETE", markDirty);
+		}
+	}
+
+	/**
+	 * Drops the triggers created by {@link #createTriggers(SQLiteDatabase, Table)}.
+	 */
+	public void dropTriggers(SQLiteDatabase db, Table table) {
+		String[] events = { "insert", "update", "delete" };
+		for (String event : events) {
+			db.execSQL(String.format("DROP TRIGGER IF EXISTS %s_%s_%s", name, table.getName(), event));
+		}
+	}
+
+	/**
+	 * Recomputes the backing table of a materialized view. This should be
+	 * called within a transaction.
+	 */
+	public void refresh(SQLiteDatabase db) {
+		db.execSQL("DELETE FROM " + name);
+		db.execSQL("INSERT INTO " + name + " SELECT * FROM " + getSourceName());
+		ViewState.setDirty(db, name, false);
+	}
+
+	private static String getType(SQLiteDatabase db, String name) {
+		Cursor c = db.query("sqlite_master", new String[] { "type" }, "name = ?", new String[] { name }, null, null,
+				null);
+		try {
+			return (c.moveToFirst()) ? c.getString(0) : null;
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Drops this view, regardless of whether it has been created as a plain or
+	 * a materialized view. The triggers of a materialized view belong to the
+	 * tables it depends on and have to be dropped separately.
+	 */
+	public void drop(SQLiteDatabase db) {
+		if ("table".equals(getType(db, name))) {
+			db.execSQL("DROP TABLE IF EXISTS " + name);
+		} else {
+			db.execSQL("DROP VIEW IF EXISTS " + name);
+		}
+		db.execSQL("DROP VIEW IF EXISTS " + getSourceName());
 	}
 
 	public String getName() {
@@ -0,0 +1,57 @@
+package cat.mobilejazz.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Stores whether the backing table of a materialized {@link View} is out of
+ * date. The flag is set by triggers on the tables the view depends on and
+ * cleared when the view is refreshed.
+ *
+ * The table is local and created together with the first materialized view.
+ */
+public class ViewState {
+
+	public static final String TABLE_NAME = "db_view_state";
+
+	public static final String COLUMN_VIEW = "view_name";
+
+	public static final String COLUMN_DIRTY = "dirty";
+
+	static void ensureTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + COLUMN_VIEW + " TEXT PRIMARY KEY, "
+				+ COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 1)");
+	}
+
+	/**
+	 * @return the statement a trigger executes to mark the given view as out
+	 *         of date.
+	 */
+	static String getMarkDirtyStatement(String view) {
+		return "UPDATE " + TABLE_NAME + " SET " + COLUMN_DIRTY + " = 1 WHERE " + COLUMN_VIEW + " = '" + view
+				+ "' AND " + COLUMN_DIRTY + " = 0";
+	}
+
+	/**
+	 * @return {@code true} if the backing table of the given view needs to be
+	 *         refreshed. Views without a state are considered out of date.
+	 */
+	public static boolean isDirty(SQLiteDatabase db, String view) {
+		Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_DIRTY }, COLUMN_VIEW + " = ?", new String[] { view },
+				null, null, null);
+		try {
+			return !c.moveToFirst() || c.getInt(0) != 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	public static void setDirty(SQLiteDatabase db, String view, boolean dirty) {
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_VIEW, view);
+		values.put(COLUMN_DIRTY, dirty ? 1 : 0);
+		db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+}
@@ -0,0 +1,139 @@
+package cat.mobilejazz.database;
+
+/**
+ * Journal settings of a {@link Database}. By default, the platform's defaults
+ * are kept. If write-ahead logging is enabled, queries read from a consistent
+ * snapshot on a separate connection of the platform's connection pool while
+ * a long transaction (e.g. a sync) is writing.
+ *
+ * All settings except write-ahead logging itself only affect the connection
+ * that writes to the database.
+ */
+public class WalOptions {
+
+	/**
+	 * Keep the current value of a setting.
+	 */
+	public static final int DEFAULT = -1;
+
+	public static final int SYNCHRONOUS_OFF = 0;
+	public static final int SYNCHRONOUS_NORMAL = 1;
+	public static final int SYNCHRONOUS_FULL = 2;
+
+	/**
+	 * Options that keep all platform defaults.
+	 */
+	public static final WalOptions NONE = new Builder().build();
+
+	public static class Builder {
+
+		private boolean mWriteAheadLogging;
+		private int mSynchronous = DEFAULT;
+		private long mJournalSizeLimit;
+		private boolean mJournalSizeLimitSet;
+		private int mAutoCheckpoint = DEFAULT;
+		private boolean mCheckpointAfterSync;
+
+		/**
+		 * Enables write-ahead logging. This has no effect on platforms prior
+		 * to {@link android.os.Build.VERSION_CODES#HONEYCOMB}.
+		 */
+		public Builder writeAheadLogging(boolean enabled) {
+			mWriteAheadLogging = enabled;
+			return this;
+		}
+
+		/**
+		 * @param level
+		 *            One of the {@code SYNCHRONOUS_*} constants. In WAL mode,
+		 *            {@link WalOptions#SYNCHRONOUS_NORMAL} is safe against
+		 *            corruption, but the last transactions may be lost on
+		 *            power failure.
+		 */
+		public Builder synchronous(int level) {
+			mSynchronous = level;
+			return this;
+		}
+
+		/**
+		 * @param bytes
+		 *            The size to which the journal is truncated after a
+		 *            checkpoint, or {@code -1} for no limit.
+		 */
+		public Builder journalSizeLimit(long bytes) {
+			mJournalSizeLimit = bytes;
+			mJournalSizeLimitSet = true;
+			return this;
+		}
+
+		/**
+		 * @param pages
+		 *            The number of pages in the WAL file that trigger an
+		 *            automatic checkpoint, or {@code 0} to disable automatic
+		 *            checkpoints.
+		 */
+		public Builder autoCheckpoint(int pages) {
+			mAutoCheckpoint = pages;
+			return this;
+		}
+
+		/**
+		 * Runs a checkpoint after each update from the server, so the data
+		 * of a sync is transferred to the database file right away instead
+		 * of slowing down the queries that follow.
+		 */
+		public Builder checkpointAfterSync(boolean checkpoint) {
+			mCheckpointAfterSync = checkpoint;
+			return this;
+		}
+
+		public WalOptions build() {
+			return new WalOptions(this);
+		}
+
+	}
+
+	private final boolean writeAheadLogging;
+	private final int synchronous;
+	private final long journalSizeLimit;
+	private final boolean journalSizeLimitSet;
+	private final int autoCheckpoint;
+	private final boolean checkpointAfterSync;
+
+	private WalOptions(Builder b) {
+		writeAheadLogging = b.mWriteAheadLogging;
+		synchronous = b.mSynchronous;
+		journalSizeLimit = b.mJournalSizeLimit;
+		journalSizeLimitSet = b.mJournalSizeLimitSet;
+		autoCheckpoint = b.mAutoCheckpoint;
+		checkpointAfterSync = b.mCheckpointAfterSync;
+	}
+
+	public boolean isWriteAheadLogging() {
+		return writeAheadLogging;
+	}
+
+	public int getSynchronous() {
+		return synchronous;
+	}
+
+	/**
+	 * @return {@code true} if the journal size limit has been set.
+	 */
+	public boolean hasJournalSizeLimit() {
+		return journalSizeLimitSet;
+	}
+
+	public long getJournalSizeLimit() {
+		return journalSizeLimit;
+	}
+
+	public int getAutoCheckpoint() {
+		return autoCheckpoint;
+	}
+
+	public boolean isCheckpointAfterSync() {
+		return checkpointAfterSync;
+	}
+
+}
@@ -0,0 +1,19 @@
+package cat.mobilejazz.database.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Adds a hidden column to the table of a contract that holds a hash of the
+ * {@link cat.mobilejazz.database.Storage#REMOTE} and
+ * {@link cat.mobilejazz.database.Storage#INFO} columns as last received from
+ * the server. When the table is updated from the server, rows whose hash has
+ * not changed are not written again.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ContentHash {
+
+}
@@ -0,0 +1,41 @@
+package cat.mobilejazz.database.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares an index on one or more columns of a table contract. Use
+ * {@link Indexes} to declare more than one index per table. On a column field,
+ * the index covers that column unless {@link #columns()} is given.
+ */
+@Target({ ElementType.TYPE, ElementType.FIELD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Index {
+
+	/**
+	 * The name of the index. It needs to be unique within the database. If it
+	 * is empty, a name is derived from the table and column names.
+	 */
+	String name() default "";
+
+	/**
+	 * The names of the indexed columns in the order in which they are indexed.
+	 * A column may be followed by {@code ASC} or {@code DESC}.
+	 */
+	String[] columns() default {};
+
+	/**
+	 * Creates a {@code UNIQUE} index.
+	 */
+	boolean unique() default false;
+
+	/**
+	 * An SQL condition that restricts the index to the rows that satisfy it
+	 * (a partial index), e.g. {@code "deleted = 0"}. Partial indexes require
+	 * SQLite 3.8.0, see {@link cat.mobilejazz.database.Index#create}.
+	 */
+	String where() default "";
+
+}
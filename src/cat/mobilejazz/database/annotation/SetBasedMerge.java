@@ -0,0 +1,19 @@
+package cat.mobilejazz.database.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Merges the data of a table contract that is downloaded from the server with
+ * a few set-based statements instead of one statement per row. The incoming
+ * rows are first loaded into a temporary table. This is typically faster for
+ * large tables, but requires that all rows received from the server contain
+ * the same columns. Otherwise, the default row-by-row merge is used.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface SetBasedMerge {
+
+}
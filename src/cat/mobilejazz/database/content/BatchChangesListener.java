@@ -0,0 +1,26 @@
+package cat.mobilejazz.database.content;
+
+import android.content.ContentValues;
+
+/**
+ * A {@link ChangesListener} that is informed about changes recorded for
+ * multiple rows at once. If a listener implements this interface, the
+ * {@link DataProvider} calls {@link #onInsertChanges(ContentValues, long[])}
+ * instead of calling {@link #onInsertChange(ContentValues)} for each row.
+ */
+public interface BatchChangesListener extends ChangesListener {
+
+	/**
+	 * Called after changes have been recorded for a set of rows.
+	 * 
+	 * @param change
+	 *            The values that are common to all recorded changes. The
+	 *            values of {@link Changes#COLUMN_ID} and
+	 *            {@link Changes#COLUMN_NATIVE_ID} are not meaningful.
+	 * @param ids
+	 *            The value of {@link Changes#COLUMN_ID} for each recorded
+	 *            change.
+	 */
+	public void onInsertChanges(ContentValues change, long[] ids);
+
+}
@@ -4,10 +4,16 @@ import android.provider.BaseColumns;
 import cat.mobilejazz.database.Affinity;
 import cat.mobilejazz.database.Type;
 import cat.mobilejazz.database.annotation.Column;
+import cat.mobilejazz.database.annotation.Index;
+import cat.mobilejazz.database.annotation.Indexes;
 import cat.mobilejazz.database.annotation.Local;
 import cat.mobilejazz.database.annotation.TableName;
 
 @Local
+@Indexes({
+		@Index(name = "db_changes_object_idx", columns = { Changes.COLUMN_TABLE, Changes.COLUMN_ID,
+				Changes.COLUMN_ACTION }),
+		@Index(name = "db_changes_created_at_idx", columns = { Changes.COLUMN_TIMESTAMP }) })
 public class Changes implements BaseColumns {
 
 	public static final int ACTION_UPDATE = 0;
@@ -158,6 +158,16 @@ public class CollectionFilter implements Parcelable {
 		return apiPath;
 	}
 
+	/**
+	 * A key that identifies this filter across processes, e.g. to store its
+	 * sync state.
+	 * 
+	 * @return A {@link String} that is equal for equal filters.
+	 */
+	public String getSyncKey() {
+		return String.format("%s|%s|%s|%s", table, apiPath, getSelection(), Arrays.toString(getSelectionArgs()));
+	}
+
 	@Override
 	public int hashCode() {
 		return ObjectUtils.hashCode(table) + ObjectUtils.hashCode(getSelection()) + Arrays.hashCode(getSelectionArgs())
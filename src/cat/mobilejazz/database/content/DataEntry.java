@@ -1,6 +1,11 @@
 package cat.mobilejazz.database.content;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import android.content.ContentValues;
+import android.os.Parcel;
 
 /**
  * A parsed data entry that represents an entity on the server side. It
@@ -62,4 +67,38 @@ public class DataEntry implements Comparable<DataEntry> {
 		return values;
 	}
 
+	/**
+	 * Writes this entry to a temporary file. The values are stored as a
+	 * marshalled {@link Parcel} and can therefore only be read by the same
+	 * version of the platform.
+	 */
+	void writeTo(DataOutput out) throws IOException {
+		Parcel p = Parcel.obtain();
+		try {
+			values.writeToParcel(p, 0);
+			byte[] bytes = p.marshall();
+			out.writeLong(parentId);
+			out.writeLong(serverId);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} finally {
+			p.recycle();
+		}
+	}
+
+	static DataEntry readFrom(DataInput in) throws IOException {
+		long parentId = in.readLong();
+		long serverId = in.readLong();
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		Parcel p = Parcel.obtain();
+		try {
+			p.unmarshall(bytes, 0, bytes.length);
+			p.setDataPosition(0);
+			return new DataEntry(parentId, serverId, ContentValues.CREATOR.createFromParcel(p));
+		} finally {
+			p.recycle();
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+package cat.mobilejazz.database.content;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import android.content.ContentValues;
+import cat.mobilejazz.utilities.debug.Debug;
+
+/**
+ * A sorted set of {@link DataEntry}s that can be moved out of the heap. New
+ * entries are collected in memory. When {@link #spill()} is called, they are
+ * written as a sorted run to a temporary file. {@link #iterator()} merges all
+ * runs and the entries that are still in memory, so only one entry per run is
+ * held in memory at a time.
+ *
+ * Like a {@link TreeSet}, the set contains at most one entry for each pair of
+ * parent and server id. If an entry is added twice, the first one is kept.
+ *
+ * The set has to be closed in order to remove its temporary files.
+ */
+public class DataEntrySet implements Iterable<DataEntry> {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final File mDirectory;
+	private TreeSet<DataEntry> mBuffer;
+	private long mBufferSize;
+	private List<File> mRuns;
+	private List<MergeIterator> mIterators;
+	private int mSize;
+
+	/**
+	 * @param directory
+	 *            The directory where the temporary files are created.
+	 */
+	public DataEntrySet(File directory) {
+		mDirectory = directory;
+		mBuffer = new TreeSet<DataEntry>();
+		mRuns = new ArrayList<File>();
+		mIterators = new ArrayList<MergeIterator>();
+	}
+
+	/**
+	 * Estimates the number of bytes the given values occupy on the heap.
+	 */
+	public static long estimateSize(ContentValues values) {
+		long size = 96L;
+		for (Map.Entry<String, Object> e : values.valueSet()) {
+			size += 48L + 2L * e.getKey().length();
+			Object value = e.getValue();
+			if (value instanceof String) {
+				size += 40L + 2L * ((String) value).length();
+			} else if (value instanceof byte[]) {
+				size += 16L + ((byte[]) value).length;
+			} else {
+				size += 16L;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Adds an entry to the entries in memory.
+	 *
+	 * @return the estimated number of bytes this has added to the heap.
+	 */
+	public long add(DataEntry entry) {
+		if (mBuffer.add(entry)) {
+			long size = estimateSize(entry.values);
+			mBufferSize += size;
+			++mSize;
+			return size;
+		} else {
+			return 0L;
+		}
+	}
+
+	/**
+	 * @return the estimated number of bytes of the entries in memory.
+	 */
+	public long getBufferSize() {
+		return mBufferSize;
+	}
+
+	/**
+	 * @return the number of entries that have been added. Entries that have
+	 *         been added again after the first one has been spilled are
+	 *         counted twice.
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the number of sorted runs on disk.
+	 */
+	public int getRunCount() {
+		return mRuns.size();
+	}
+
+	/**
+	 * Writes the entries in memory to a new sorted run on disk. If this
+	 * fails, the entries are kept in memory.
+	 *
+	 * @return the estimated number of bytes that have been freed.
+	 */
+	public long spill() {
+		if (mBuffer.isEmpty()) {
+			return 0L;
+		}
+		File run = null;
+		try {
+			run = File.createTempFile("entries", ".run", mDirectory);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run),
+					BUFFER_SIZE));
+			try {
+				for (DataEntry entry : mBuffer) {
+					entry.writeTo(out);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Debug.logException(e);
+			if (run != null) {
+				run.delete();
+			}
+			return 0L;
+		}
+		mRuns.add(run);
+		mBuffer = new TreeSet<DataEntry>();
+		long freed = mBufferSize;
+		mBufferSize = 0L;
+		return freed;
+	}
+
+	/**
+	 * Closes the runs of iterators that have not been read to the end, e.g.
+	 * because the merge has been cancelled, and removes all temporary files.
+	 */
+	public void close() {
+		for (MergeIterator i : new ArrayList<MergeIterator>(mIterators)) {
+			i.closeAll();
+		}
+		for (File run : mRuns) {
+			run.delete();
+		}
+		mRuns.clear();
+		mBuffer.clear();
+		mBufferSize = 0L;
+	}
+
+	/**
+	 * A sorted source of entries: either a run on disk or the entries in
+	 * memory.
+	 */
+	private static class Source implements Comparable<Source> {
+
+		private final int index;
+		private final Iterator<DataEntry> memory;
+		private final DataInputStream disk;
+		private DataEntry current;
+
+		public Source(int index, Iterator<DataEntry> memory) {
+			this.index = index;
+			this.memory = memory;
+			this.disk = null;
+		}
+
+		public Source(int index, File run) throws IOException {
+			this.index = index;
+			this.memory = null;
+			this.disk = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+		}
+
+		/**
+		 * @return {@code false} if the source is exhausted.
+		 */
+		public boolean advance() throws IOException {
+			if (memory != null) {
+				current = (memory.hasNext()) ? memory.next() : null;
+			} else {
+				try {
+					current = DataEntry.readFrom(disk);
+				} catch (EOFException e) {
+					current = null;
+				}
+			}
+			if (current == null) {
+				close();
+				return false;
+			} else {
+				return true;
+			}
+		}
+
+		public void close() {
+			if (disk != null) {
+				try {
+					disk.close();
+				} catch (IOException e) {
+					Debug.logException(e);
+				}
+			}
+		}
+
+		@Override
+		public int compareTo(Source another) {
+			int c = current.compareTo(another.current);
+			if (c == 0) {
+				// prefer earlier runs, they contain the entries added first:
+				return (index < another.index) ? -1 : ((index > another.index) ? 1 : 0);
+			} else {
+				return c;
+			}
+		}
+
+	}
+
+	private class MergeIterator implements Iterator<DataEntry> {
+
+		private final PriorityQueue<Source> mQueue;
+
+		public MergeIterator() {
+			mQueue = new PriorityQueue<Source>(mRuns.size() + 1);
+			mIterators.add(this);
+			try {
+				for (int i = 0; i < mRuns.size(); ++i) {
+					offer(new Source(i, mRuns.get(i)));
+				}
+			} catch (IOException e) {
+				closeAll();
+				throw new IllegalStateException("Could not read spilled entries", e);
+			}
+			offer(new Source(mRuns.size(), mBuffer.iterator()));
+		}
+
+		private void offer(Source source) {
+			try {
+				if (source.advance()) {
+					mQueue.offer(source);
+				}
+			} catch (IOException e) {
+				source.close();
+				closeAll();
+				throw new IllegalStateException("Could not read spilled entries", e);
+			}
+		}
+
+		private void closeAll() {
+			for (Source s : mQueue) {
+				s.close();
+			}
+			mQueue.clear();
+			mIterators.remove(this);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !mQueue.isEmpty();
+		}
+
+		@Override
+		public DataEntry next() {
+			Source source = mQueue.poll();
+			if (source == null) {
+				throw new NoSuchElementException();
+			}
+			DataEntry result = source.current;
+			offer(source);
+			// skip later duplicates of the same entity:
+			while (!mQueue.isEmpty() && mQueue.peek().current.compareTo(result) == 0) {
+				offer(mQueue.poll());
+			}
+			if (mQueue.isEmpty()) {
+				// all runs have been closed by advancing past their end:
+				mIterators.remove(this);
+			}
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	/**
+	 * @return an iterator over all entries in ascending order.
+	 */
+	@Override
+	public Iterator<DataEntry> iterator() {
+		if (mRuns.isEmpty()) {
+			return mBuffer.iterator();
+		} else {
+			return new MergeIterator();
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package cat.mobilejazz.database.content;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the entries of the main table from the thread that downloads them to
+ * the thread that writes them to the database. Entries are passed in chunks
+ * through a bounded queue: if the writer falls behind, the download is
+ * blocked until there is space again.
+ *
+ * The producer calls {@link #put(DataEntry)} and finally either
+ * {@link #finish()} or {@link #abort()}. The consumer calls {@link #take()}
+ * until it returns {@code null} and {@link #close()} once it stops reading.
+ */
+public class DataPipeline {
+
+	private static final long OFFER_TIMEOUT = 100L;
+
+	private final List<DataEntry> END = new ArrayList<DataEntry>(0);
+
+	private final BlockingQueue<List<DataEntry>> mQueue;
+	private final int mChunkSize;
+	private List<DataEntry> mChunk;
+	private volatile boolean mAborted;
+	private volatile boolean mClosed;
+
+	/**
+	 * @param chunkSize
+	 *            The number of entries that are passed at once.
+	 * @param capacity
+	 *            The number of chunks that may wait for the writer.
+	 */
+	public DataPipeline(int chunkSize, int capacity) {
+		mChunkSize = Math.max(chunkSize, 1);
+		mQueue = new ArrayBlockingQueue<List<DataEntry>>(Math.max(capacity, 1));
+		mChunk = new ArrayList<DataEntry>(mChunkSize);
+	}
+
+	private boolean offer(List<DataEntry> chunk) {
+		try {
+			while (!mClosed) {
+				if (mQueue.offer(chunk, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					return true;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Adds an entry to the current chunk and passes the chunk on if it is
+	 * full. This blocks while the queue is full.
+	 *
+	 * @return {@code false} if the writer does not read anymore.
+	 */
+	public boolean put(DataEntry entry) {
+		if (mClosed) {
+			return false;
+		}
+		mChunk.add(entry);
+		if (mChunk.size() >= mChunkSize) {
+			List<DataEntry> chunk = mChunk;
+			mChunk = new ArrayList<DataEntry>(mChunkSize);
+			return offer(chunk);
+		}
+		return true;
+	}
+
+	/**
+	 * Passes the remaining entries on and tells the writer that the download
+	 * is complete.
+	 */
+	public void finish() {
+		if (!mChunk.isEmpty()) {
+			offer(mChunk);
+			mChunk = new ArrayList<DataEntry>(0);
+		}
+		offer(END);
+	}
+
+	/**
+	 * Tells the writer that the download has failed. Entries that have not
+	 * been read yet are dropped.
+	 */
+	public void abort() {
+		mAborted = true;
+		mChunk.clear();
+		mQueue.clear();
+		offer(END);
+	}
+
+	/**
+	 * @return {@code true} if the download has failed.
+	 */
+	public boolean isAborted() {
+		return mAborted;
+	}
+
+	/**
+	 * Waits for the next chunk.
+	 *
+	 * @return the next chunk or {@code null} if the download is complete or
+	 *         has been aborted (see {@link #isAborted()}).
+	 */
+	public List<DataEntry> take() {
+		if (mClosed) {
+			return null;
+		}
+		try {
+			List<DataEntry> chunk = mQueue.take();
+			return (chunk == END || mAborted) ? null : chunk;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			mAborted = true;
+			return null;
+		}
+	}
+
+	/**
+	 * Tells the producer that the writer does not read anymore, so that it is
+	 * not blocked if the writer stops early.
+	 */
+	public void close() {
+		mClosed = true;
+		mQueue.clear();
+	}
+
+}
@@ -1,43 +1,47 @@
 package cat.mobilejazz.database.content;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 
-import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
-import android.net.Uri;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
 import cat.mobilejazz.database.ProgressListener;
 import cat.mobilejazz.database.Table;
-import cat.mobilejazz.database.content.DataAdapter.DataAdapterListener;
+import cat.mobilejazz.database.content.DeltaDataAdapter.DeltaListener;
 import cat.mobilejazz.database.content.DataProvider.ResolvedUri;
 import cat.mobilejazz.database.query.Select;
+import cat.mobilejazz.utilities.CompatibilityUtils;
 import cat.mobilejazz.utilities.collections.CachedIterator;
-import cat.mobilejazz.utilities.collections.SetFromMap;
 import cat.mobilejazz.utilities.debug.Debug;
 
 /* TODO: maybe outsource to tb project? */
-public class DataProcessor implements DataAdapterListener, ChangesListener {
+public class DataProcessor implements DeltaListener, BatchChangesListener {
 
 	/**
 	 * After the data processor has updated the database, this interface allows
@@ -207,65 +211,121 @@ public class DataProcessor implements DataAdapterListener, ChangesListener {
 	//
 	// }
 
+	/**
+	 * The number of local rows that are read at once during a merge.
+	 */
+	private static final int LOCAL_PAGE_SIZE = 512;
+
+	/**
+	 * Merges entries regardless of their parent id.
+	 */
+	private static final long ANY_PARENT = Long.MIN_VALUE;
+
 	private SQLiteDatabase mDb;
+	private StatementCache mStatements;
+
+	/**
+	 * Whether {@link #mStatements} has been created by this processor and
+	 * needs to be cleared on {@link #close()}.
+	 */
+	private boolean mOwnsStatements;
 	private String mUser;
 	private Set<String> mAffectedTables;
 
 	private ProgressListener mListener;
 	private Table mMainTable;
 	private long mOperationsDone;
+	private long mRowsUnchanged;
+	private long mExpectedCount;
+
+	private int mChunkOperations;
+	private long mChunkMillis;
+	private long mChunkStartOperations;
+	private long mChunkStartTime;
+	private int mChunksCommitted;
+	private long mEntriesTotal;
+	private long mEntriesDone;
 
 	private Select mCurrentSelection;
 
 	private boolean mCancelled;
 
-	private LinkedHashMap<Table, SortedSet<DataEntry>> mOperations;
+	private LinkedHashMap<Table, DataEntrySet> mOperations;
+	private Map<Table, List<Long>> mDeletedEntries;
+	private boolean mDelta;
+	private String mSyncToken;
+	private long mMemoryBudget;
+	private long mMemoryUsed;
 	private Map<Table, Integer> mDepthMap;
+	private DataPipeline mPipeline;
+	private DataAdapter mPipelineSource;
 
 	private DataProvider provider;
 
 	private DatabaseUpdateListener updateListener;
 
-	private Set<String> mPendingUpdates;
-	private Set<String> mPendingDeletes;
+	/**
+	 * Server ids with pending local changes by table.
+	 */
+	private ConcurrentHashMap<String, LongHashSet> mPendingUpdates;
+	private ConcurrentHashMap<String, LongHashSet> mPendingDeletes;
+
+	/**
+	 * Server ids of the main table that have been received in pipelined mode.
+	 */
+	private LongHashSet mReceivedIds;
 
+	/**
+	 * Creates a processor that compiles its write statements into a cache of
+	 * its own, which is released by {@link #close()}.
+	 */
 	public DataProcessor(DataProvider provider, String user, SQLiteDatabase db, ProgressListener listener,
 			Table mainTable, long expectedCount, Select currentSelection, DatabaseUpdateListener updateListener) {
+		this(provider, user, db, new StatementCache(db, provider.getStatementCacheSize()), listener, mainTable,
+				expectedCount, currentSelection, updateListener);
+		mOwnsStatements = true;
+	}
+
+	public DataProcessor(DataProvider provider, String user, SQLiteDatabase db, StatementCache statements,
+			ProgressListener listener, Table mainTable, long expectedCount, Select currentSelection,
+			DatabaseUpdateListener updateListener) {
 		this.provider = provider;
 		mDb = db;
+		mStatements = statements;
 		mUser = user;
 		mAffectedTables = new HashSet<String>();
-		mOperations = new LinkedHashMap<Table, SortedSet<DataEntry>>();
+		mOperations = new LinkedHashMap<Table, DataEntrySet>();
+		mDeletedEntries = new LinkedHashMap<Table, List<Long>>();
+		mMemoryBudget = provider.getSyncMemoryBudget();
+		mMemoryUsed = 0L;
 		mDepthMap = new HashMap<Table, Integer>();
 		mListener = listener;
 		mOperationsDone = 0;
+		mExpectedCount = expectedCount;
+		mPendingUpdates = new ConcurrentHashMap<String, LongHashSet>();
+		mPendingDeletes = new ConcurrentHashMap<String, LongHashSet>();
 		mMainTable = mainTable;
 		mCurrentSelection = currentSelection.buildUpon().sort(mainTable.getColumnSyncId().getName()).build();
 
 		this.updateListener = updateListener;
 	}
 
-	@SuppressLint("DefaultLocale")
-	private String getSignature(String table, long id) {
-		return String.format("%s:%d", table, id);
-	}
-
 	private final DataEntry NO_DATA = new DataEntry(Long.MAX_VALUE, null);
 
-	private long getCurrentServerId(Cursor current) {
-		if (!current.isAfterLast()) {
-			return current.getLong(1);
-		} else {
-			return Long.MAX_VALUE;
-		}
-	}
-
 	private int insertOrUpdate(String table, ContentValues values, String identifyingColumn, long identifyingValue) {
 		try {
-			long result = mDb.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+			long result = mStatements.insertWithOnConflict(table, values, SQLiteDatabase.CONFLICT_IGNORE);
 			if (result < 0L) {
 				// row exists already -> update:
-				mDb.update(table, values, String.format("%s = %d", identifyingColumn, identifyingValue), null);
+				Long hash = values.getAsLong(Table.COLUMN_SYNC_HASH);
+				if (hash == null) {
+					mStatements.update(table, values, identifyingColumn + " = ?", new Object[] { identifyingValue });
+				} else if (mStatements.update(table, values, identifyingColumn + " = ? AND ("
+						+ Table.COLUMN_SYNC_HASH + " IS NULL OR " + Table.COLUMN_SYNC_HASH + " <> ?)", new Object[] {
+						identifyingValue, hash }) == 0) {
+					++mRowsUnchanged;
+					return 0;
+				}
 			}
 			return 1;
 		} catch (SQLiteConstraintException e) {
@@ -285,72 +345,766 @@ public class DataProcessor implements DataAdapterListener, ChangesListener {
 		}
 	}
 
-	private Set<String> getPendingActions(Cursor pendingChanges, int action) {
-		Set<String> result = SetFromMap.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
-		if (pendingChanges.getCount() > 0) {
-			pendingChanges.moveToFirst();
-			while (!pendingChanges.isAfterLast()) {
-				if (pendingChanges.getInt(2) == action)
-					result.add(getSignature(pendingChanges.getString(0), pendingChanges.getLong(1)));
-				pendingChanges.moveToNext();
+	private static LongHashSet getPendingIds(ConcurrentHashMap<String, LongHashSet> pending, String table) {
+		LongHashSet result = pending.get(table);
+		if (result == null) {
+			result = new LongHashSet(0);
+			LongHashSet previous = pending.putIfAbsent(table, result);
+			if (previous != null) {
+				result = previous;
 			}
 		}
 		return result;
 	}
 
-	private void merge(Table table, Select localData, SortedSet<DataEntry> operations, Date startTime) {
+	private static void addPendingActions(Cursor pendingChanges, int action,
+			ConcurrentHashMap<String, LongHashSet> result) {
+		// count first to size the sets:
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		pendingChanges.moveToPosition(-1);
+		while (pendingChanges.moveToNext()) {
+			if (pendingChanges.getInt(2) == action) {
+				String table = pendingChanges.getString(0);
+				Integer count = counts.get(table);
+				counts.put(table, (count == null) ? 1 : count + 1);
+			}
+		}
+
+		for (Map.Entry<String, Integer> c : counts.entrySet()) {
+			result.putIfAbsent(c.getKey(), new LongHashSet(c.getValue()));
+		}
+		pendingChanges.moveToPosition(-1);
+		while (pendingChanges.moveToNext()) {
+			if (pendingChanges.getInt(2) == action) {
+				result.get(pendingChanges.getString(0)).add(pendingChanges.getLong(1));
+			}
+		}
+	}
+
+	/**
+	 * Adds the pending updates and deletes of the given tables to the ones
+	 * that are already known.
+	 */
+	private void loadPendingChanges(Collection<Table> tables) {
+		if (tables.isEmpty()) {
+			return;
+		}
+		Cursor pendingChanges = queryPendingChanges(tables);
+		try {
+			addPendingActions(pendingChanges, Changes.ACTION_UPDATE, mPendingUpdates);
+			addPendingActions(pendingChanges, Changes.ACTION_REMOVE, mPendingDeletes);
+		} finally {
+			pendingChanges.close();
+		}
+	}
+
+	private void merge(Table table, Select localData, DataEntrySet operations, Date startTime) {
+
+		LongHashSet pendingUpdates = getPendingIds(mPendingUpdates, table.getName());
+		LongHashSet pendingDeletes = getPendingIds(mPendingDeletes, table.getName());
+
+		LocalRows current = new LocalRows(table, localData.getTable());
+		current.reset(localData.getSelection(), localData.getSelectionArgs());
+		Debug.debug("[%d] Querying: %s", operations.size(), mCurrentSelection);
+
+		CachedIterator<DataEntry> i = new CachedIterator<DataEntry>(operations.iterator(), NO_DATA);
+		mergeJoin(table, current, i, ANY_PARENT, table.hasColumnCreationDate(), pendingUpdates, pendingDeletes);
+
+	}
+
+	/**
+	 * Merges the incoming entries with the local rows, both in the order of
+	 * their sync ids: entries that are not local are inserted, rows that are
+	 * on both sides are updated and local rows that have no entry are
+	 * deleted.
+	 * 
+	 * @param parentId
+	 *            The parent id of the entries that are merged or
+	 *            {@link #ANY_PARENT}. The merge stops at the first entry of
+	 *            another parent.
+	 * @param deleteMissing
+	 *            Whether local rows without entry are deleted.
+	 */
+	private void mergeJoin(Table table, LocalRows current, CachedIterator<DataEntry> i, long parentId,
+			boolean deleteMissing, LongHashSet pendingUpdates, LongHashSet pendingDeletes) {
 
 		String syncIdCol = table.getColumnSyncId().getName();
 
-		List<String> projection = new ArrayList<String>();
-		projection.add(BaseColumns._ID);
-		projection.add(syncIdCol);
-		if (table.hasColumnCreationDate()) {
-			projection.add(table.getColumnCreationDate().toString());
+		while (!isCancelled()) {
+			long currentServerId = current.getServerId();
+			DataEntry entry = i.getValue();
+			if (parentId != ANY_PARENT && entry.parentId != parentId) {
+				entry = NO_DATA;
+			}
+			if (current.isAfterLast() && entry == NO_DATA) {
+				break;
+			}
+
+			Debug.debug("%s: %d <--- %d", table.getName(), currentServerId, entry.serverId);
+
+			if (entry.serverId == currentServerId) {
+				// update:
+				if (current.hasHash(entry.values.getAsLong(Table.COLUMN_SYNC_HASH))) {
+					++mRowsUnchanged;
+				} else if (!pendingUpdates.contains(entry.serverId)) {
+					mOperationsDone += mStatements.update(table.getName(), entry.values, "_id = ?",
+							new Object[] { current.getId() });
+				}
+				i.moveToNext();
+				++mEntriesDone;
+				current.moveToNext();
+			} else if (entry.serverId < currentServerId) {
+				// insert:
+				if (!pendingDeletes.contains(entry.serverId)) {
+					mOperationsDone += insertOrUpdate(table.getName(), entry.values, syncIdCol, entry.serverId);
+				}
+				i.moveToNext();
+				++mEntriesDone;
+			} else {
+				// delete:
+				if (currentServerId > 0 && deleteMissing) {
+					notifyUpdateListeners(Changes.ACTION_REMOVE, table.getName(), currentServerId);
+					mOperationsDone += mStatements.delete(table.getName(), "_id = ?",
+							new Object[] { current.getId() });
+				}
+				current.moveToNext();
+			}
+			commitIfDue(table);
 		}
 
-		Cursor current = mDb.query(localData.getTable(), projection.toArray(new String[] {}), localData.getSelection(),
-				localData.getSelectionArgs(), null, null, localData.getSortOrder());
-		try {
-			current.moveToFirst();
-			Debug.debug("[%d, %d] Querying: %s", current.getCount(), operations.size(), mCurrentSelection);
+	}
 
-			CachedIterator<DataEntry> i = new CachedIterator<DataEntry>(operations.iterator(), NO_DATA);
+	/**
+	 * The local rows of a selection in the order of their sync ids. Instead
+	 * of keeping a cursor open during the whole merge, the rows are read page
+	 * by page, each page starting after the last row of the previous one.
+	 * Pages are read before the rows of the page are written, so the position
+	 * stays valid if the merge inserts rows or the transaction is committed
+	 * in between. Rows without sync id are skipped.
+	 */
+	private class LocalRows {
+
+		private final String mTable;
+		private String mSelection;
+		private String[] mSelectionArgs;
+		private final String mSyncIdCol;
+		private final String mHashCol;
+		private final long[] mIds;
+		private final long[] mServerIds;
+		private final long[] mHashes;
+		private final boolean[] mHashNull;
+		private int mCount;
+		private int mPosition;
+		private boolean mLastPage;
+
+		/**
+		 * @param from
+		 *            The table or view the rows of the table are read from.
+		 */
+		public LocalRows(Table table, String from) {
+			mTable = from;
+			mSyncIdCol = table.getColumnSyncId().getName();
+			mHashCol = (table.hasContentHash()) ? Table.COLUMN_SYNC_HASH : null;
+			mIds = new long[LOCAL_PAGE_SIZE];
+			mServerIds = new long[LOCAL_PAGE_SIZE];
+			mHashes = (mHashCol != null) ? new long[LOCAL_PAGE_SIZE] : null;
+			mHashNull = (mHashCol != null) ? new boolean[LOCAL_PAGE_SIZE] : null;
+		}
 
-			while ((!current.isAfterLast() || !i.isAfterLast()) && !isCancelled()) {
-				long currentServerId = getCurrentServerId(current);
-				DataEntry entry = i.getValue();
+		/**
+		 * Moves to the first row of the given selection.
+		 */
+		public void reset(String selection, String[] selectionArgs) {
+			mSelection = selection;
+			mSelectionArgs = selectionArgs;
+			readPage(false);
+		}
 
-				Debug.debug("%s: %d <--- %d", table.getName(), currentServerId, entry.serverId);
+		private void readPage(boolean after) {
+			StringBuilder where = new StringBuilder();
+			List<String> args = new ArrayList<String>();
+			if (!TextUtils.isEmpty(mSelection)) {
+				where.append('(').append(mSelection).append(") AND ");
+				if (mSelectionArgs != null) {
+					args.addAll(Arrays.asList(mSelectionArgs));
+				}
+			}
+			if (after) {
+				long lastServerId = mServerIds[mCount - 1];
+				where.append('(').append(mSyncIdCol).append(" > ? OR (").append(mSyncIdCol).append(" = ? AND ")
+						.append(BaseColumns._ID).append(" > ?))");
+				args.add(String.valueOf(lastServerId));
+				args.add(String.valueOf(lastServerId));
+				args.add(String.valueOf(mIds[mCount - 1]));
+			} else {
+				where.append(mSyncIdCol).append(" IS NOT NULL");
+			}
 
-				if (entry.serverId == currentServerId) {
-					// update:
-					if (!mPendingUpdates.contains(getSignature(table.getName(), entry.values.getAsLong(syncIdCol)))) {
-						mOperationsDone += mDb.update(table.getName(), entry.values, "_id = ?",
-								new String[] { String.valueOf(current.getLong(0)) });
+			String[] projection = (mHashCol != null) ? new String[] { BaseColumns._ID, mSyncIdCol, mHashCol }
+					: new String[] { BaseColumns._ID, mSyncIdCol };
+			String[] selectionArgs = args.toArray(new String[args.size()]);
+			String orderBy = mSyncIdCol + ", " + BaseColumns._ID;
+			QueryPlanInspector inspector = provider.getQueryPlanInspector();
+			QueryPlanInspector.QueryPlan plan = null;
+			long startTime = 0L;
+			if (inspector != null) {
+				plan = inspector.inspect(mDb, QueryPlanInspector.SOURCE_MERGE, mTable, projection, where.toString(),
+						selectionArgs, null, orderBy, String.valueOf(LOCAL_PAGE_SIZE));
+				startTime = System.nanoTime();
+			}
+			Cursor c = mDb.query(mTable, projection, where.toString(), selectionArgs, null, null, orderBy,
+					String.valueOf(LOCAL_PAGE_SIZE));
+			try {
+				mCount = 0;
+				while (c.moveToNext()) {
+					mIds[mCount] = c.getLong(0);
+					mServerIds[mCount] = c.getLong(1);
+					if (mHashCol != null) {
+						mHashNull[mCount] = c.isNull(2);
+						mHashes[mCount] = c.getLong(2);
 					}
-					i.moveToNext();
-					current.moveToNext();
-				} else if (entry.serverId < currentServerId) {
-					// insert:
-					if (!mPendingDeletes.contains(getSignature(table.getName(), entry.values.getAsLong(syncIdCol)))) {
-						mOperationsDone += insertOrUpdate(table.getName(), entry.values, syncIdCol, entry.serverId);
+					++mCount;
+				}
+			} finally {
+				c.close();
+			}
+			if (plan != null) {
+				inspector.record(plan, System.nanoTime() - startTime);
+			}
+			mPosition = 0;
+			mLastPage = mCount < LOCAL_PAGE_SIZE;
+		}
+
+		public boolean isAfterLast() {
+			return mPosition >= mCount;
+		}
+
+		public long getId() {
+			return mIds[mPosition];
+		}
+
+		/**
+		 * @return the sync id of the current row or {@link Long#MAX_VALUE}
+		 *         after the last row.
+		 */
+		public long getServerId() {
+			return (isAfterLast()) ? Long.MAX_VALUE : mServerIds[mPosition];
+		}
+
+		/**
+		 * @return {@code true} if the current row has the given content hash.
+		 */
+		public boolean hasHash(Long hash) {
+			return hash != null && mHashCol != null && !mHashNull[mPosition] && mHashes[mPosition] == hash;
+		}
+
+		public void moveToNext() {
+			++mPosition;
+			if (mPosition >= mCount && !mLastPage) {
+				readPage(true);
+			}
+		}
+
+	}
+
+	/**
+	 * Commits the work done so far and starts a new transaction if chunking
+	 * is enabled (see {@link #setChunking(int, long)}) and the current chunk
+	 * is complete. If other connections are waiting for the database, they
+	 * get the chance to run in between.
+	 */
+	private void commitIfDue(Table table) {
+		if (mChunkOperations <= 0 && mChunkMillis <= 0L) {
+			return;
+		}
+		long now = SystemClock.uptimeMillis();
+		if ((mChunkOperations > 0 && mOperationsDone - mChunkStartOperations >= mChunkOperations)
+				|| (mChunkMillis > 0L && now - mChunkStartTime >= mChunkMillis)) {
+			if (!mDb.yieldIfContendedSafely()) {
+				mDb.setTransactionSuccessful();
+				mDb.endTransaction();
+				CompatibilityUtils.beginTransactionNonExclusive(mDb);
+			}
+			++mChunksCommitted;
+			mChunkStartOperations = mOperationsDone;
+			mChunkStartTime = SystemClock.uptimeMillis();
+			if (mEntriesTotal > 0L) {
+				mListener.onProgress(table.getName(), Math.min((double) mEntriesDone / mEntriesTotal, 1.0));
+			}
+		}
+	}
+
+	/**
+	 * Enables committing the merge in chunks: after the given number of
+	 * operations or milliseconds, whichever comes first, the transaction is
+	 * committed and a new one is started, and the progress is reported to
+	 * the {@link ProgressListener}. This must only be enabled if
+	 * {@link #performOperations(Date)} is called within a transaction that is
+	 * not nested, and gives up the atomicity of the update.
+	 * 
+	 * @param operations
+	 *            The number of operations per chunk or {@code 0} for no
+	 *            limit.
+	 * @param millis
+	 *            The duration of a chunk or {@code 0} for no limit.
+	 */
+	public void setChunking(int operations, long millis) {
+		mChunkOperations = operations;
+		mChunkMillis = millis;
+	}
+
+	/**
+	 * @return the number of intermediate commits of the last call to
+	 *         {@link #performOperations(Date)}.
+	 */
+	public int getChunksCommitted() {
+		return mChunksCommitted;
+	}
+
+	private int executeUpdateDelete(String sql, List<Object> args) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			SQLiteStatement statement = mDb.compileStatement(sql);
+			try {
+				for (int i = 0; i < args.size(); ++i) {
+					DatabaseUtils.bindObjectToProgram(statement, i + 1, args.get(i));
+				}
+				return statement.executeUpdateDelete();
+			} finally {
+				statement.close();
+			}
+		} else {
+			mDb.execSQL(sql, args.toArray());
+			return (int) DatabaseUtils.longForQuery(mDb, "SELECT changes()", null);
+		}
+	}
+
+	private static boolean hasColumns(ContentValues values, String[] columns) {
+		if (values.size() != columns.length) {
+			return false;
+		}
+		for (String c : columns) {
+			if (!values.containsKey(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Loads the given entries into a new temporary table.
+	 * 
+	 * @return the columns of the temporary table or {@code null} if the
+	 *         entries do not all have the same columns.
+	 */
+	private String[] loadTempTable(String tempTable, String syncIdCol, DataEntrySet operations) {
+		Iterator<DataEntry> i = operations.iterator();
+		DataEntry first = (i.hasNext()) ? i.next() : null;
+		String[] columns;
+		if (first == null) {
+			columns = new String[] { syncIdCol };
+		} else if (first.values.containsKey(syncIdCol)) {
+			columns = first.values.keySet().toArray(new String[first.values.size()]);
+		} else {
+			return null;
+		}
+
+		StringBuilder create = new StringBuilder();
+		StringBuilder insert = new StringBuilder();
+		create.append("CREATE TEMP TABLE ").append(tempTable).append(" (");
+		insert.append("INSERT OR IGNORE INTO temp.").append(tempTable).append(" (");
+		for (int c = 0; c < columns.length; ++c) {
+			if (c > 0) {
+				create.append(", ");
+				insert.append(", ");
+			}
+			create.append(columns[c]);
+			if (columns[c].equals(syncIdCol)) {
+				create.append(" INTEGER PRIMARY KEY");
+			}
+			insert.append(columns[c]);
+		}
+		create.append(')');
+		insert.append(") VALUES (?");
+		for (int c = 1; c < columns.length; ++c) {
+			insert.append(", ?");
+		}
+		insert.append(')');
+		mDb.execSQL(create.toString());
+
+		if (first != null) {
+			SQLiteStatement statement = mDb.compileStatement(insert.toString());
+			try {
+				DataEntry entry = first;
+				while (entry != null) {
+					if (!hasColumns(entry.values, columns)) {
+						return null;
+					}
+					for (int c = 0; c < columns.length; ++c) {
+						DatabaseUtils.bindObjectToProgram(statement, c + 1, entry.values.get(columns[c]));
+					}
+					statement.executeInsert();
+					statement.clearBindings();
+					entry = (i.hasNext()) ? i.next() : null;
+				}
+			} finally {
+				statement.close();
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * Merges the incoming data of a table with the local data by loading it
+	 * into a temporary table and applying all updates, inserts and deletes
+	 * with a few set-based statements. The outcome is the same as that of
+	 * {@link #merge(Table, Select, DataEntrySet, Date)} provided that the
+	 * sync id is unique.
+	 * 
+	 * @return {@code false} if the incoming rows do not all have the same
+	 *         columns. In that case, nothing has been changed.
+	 */
+	private boolean mergeSetBased(Table table, Select localData, DataEntrySet operations) {
+		String name = table.getName();
+		String syncIdCol = table.getColumnSyncId().getName();
+		String tempTable = "merge_" + name;
+
+		mDb.execSQL("DROP TABLE IF EXISTS temp." + tempTable);
+		try {
+			String[] columns = loadTempTable(tempTable, syncIdCol, operations);
+			if (columns == null) {
+				Debug.info("Incoming rows of %s differ in their columns, merging row by row", name);
+				return false;
+			}
+
+			String selection = localData.getSelection();
+			List<String> selectionArgs = (localData.getSelectionArgs() != null) ? Arrays.asList(localData
+					.getSelectionArgs()) : Collections.<String> emptyList();
+			String where = (TextUtils.isEmpty(selection)) ? "" : " WHERE (" + selection + ")";
+			String localIds = "SELECT " + BaseColumns._ID + " FROM " + localData.getTable() + where;
+			String localSyncIds = "SELECT " + syncIdCol + " FROM " + localData.getTable()
+					+ ((where.length() > 0) ? where + " AND " : " WHERE ") + syncIdCol + " IS NOT NULL";
+			String pending = "EXISTS (SELECT 1 FROM " + Changes.TABLE_NAME + " c WHERE c." + Changes.COLUMN_TABLE
+					+ " = ? AND c." + Changes.COLUMN_ID + " = m." + syncIdCol + " AND c." + Changes.COLUMN_ACTION
+					+ " = ?)";
+			// rows whose content has not changed are not updated:
+			String changed = "";
+			if (table.hasContentHash() && Arrays.asList(columns).contains(Table.COLUMN_SYNC_HASH)) {
+				String unchanged = "EXISTS (SELECT 1 FROM temp." + tempTable + " m WHERE m." + syncIdCol + " = "
+						+ name + "." + syncIdCol + " AND m." + Table.COLUMN_SYNC_HASH + " = " + name + "."
+						+ Table.COLUMN_SYNC_HASH + ")";
+				changed = " AND NOT " + unchanged;
+				mRowsUnchanged += DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM " + name + " WHERE "
+						+ BaseColumns._ID + " IN (" + localIds + ") AND " + unchanged,
+						selectionArgs.toArray(new String[selectionArgs.size()]));
+			}
+
+			StringBuilder set = new StringBuilder();
+			StringBuilder columnList = new StringBuilder();
+			for (String c : columns) {
+				if (columnList.length() > 0) {
+					columnList.append(", ");
+				}
+				columnList.append(c);
+				if (!c.equals(syncIdCol)) {
+					if (set.length() > 0) {
+						set.append(", ");
 					}
-					i.moveToNext();
-				} else {
-					// delete:
-					if (currentServerId > 0
-							&& (table.hasColumnCreationDate())) {
-						notifyUpdateListeners(Changes.ACTION_REMOVE, table.getName(), current.getLong(1));
-						mOperationsDone += mDb.delete(table.getName(), "_id = ?",
-								new String[] { String.valueOf(current.getLong(0)) });
+					set.append(c).append(" = (SELECT m.").append(c).append(" FROM temp.").append(tempTable)
+							.append(" m WHERE m.").append(syncIdCol).append(" = ").append(name).append('.')
+							.append(syncIdCol).append(')');
+				}
+			}
+
+			List<Object> args = new ArrayList<Object>();
+			if (set.length() > 0 && !isCancelled()) {
+				// update local rows, unless there are pending updates:
+				args.addAll(selectionArgs);
+				args.add(name);
+				args.add(Changes.ACTION_UPDATE);
+				mOperationsDone += executeUpdateDelete("UPDATE " + name + " SET " + set + " WHERE "
+						+ BaseColumns._ID + " IN (" + localIds + ") AND " + syncIdCol + " IN (SELECT m." + syncIdCol
+						+ " FROM temp." + tempTable + " m WHERE NOT " + pending + ")" + changed, args);
+
+				// update rows outside of the selection that would conflict
+				// with an insert:
+				args.clear();
+				args.addAll(selectionArgs);
+				args.add(name);
+				args.add(Changes.ACTION_REMOVE);
+				args.addAll(selectionArgs);
+				mOperationsDone += executeUpdateDelete("UPDATE " + name + " SET " + set + " WHERE "
+						+ BaseColumns._ID + " NOT IN (" + localIds + ") AND " + syncIdCol + " IN (SELECT m."
+						+ syncIdCol + " FROM temp." + tempTable + " m WHERE NOT " + pending + " AND m." + syncIdCol
+						+ " NOT IN (" + localSyncIds + "))" + changed, args);
+			}
+
+			if (!isCancelled()) {
+				// insert new rows, unless they have been deleted locally:
+				args.clear();
+				args.addAll(selectionArgs);
+				args.add(name);
+				args.add(Changes.ACTION_REMOVE);
+				mOperationsDone += executeUpdateDelete("INSERT OR IGNORE INTO " + name + " (" + columnList
+						+ ") SELECT " + columnList + " FROM temp." + tempTable + " m WHERE m." + syncIdCol
+						+ " NOT IN (" + localSyncIds + ") AND NOT " + pending, args);
+			}
+
+			if (table.hasColumnCreationDate() && !isCancelled()) {
+				// delete local rows that are no longer on the server:
+				String removed = "SELECT " + BaseColumns._ID + ", " + syncIdCol + " FROM " + localData.getTable()
+						+ ((where.length() > 0) ? where + " AND " : " WHERE ") + syncIdCol + " > 0 AND "
+						+ syncIdCol + " NOT IN (SELECT " + syncIdCol + " FROM temp." + tempTable + ")";
+				if (updateListener != null) {
+					Cursor c = mDb.rawQuery(removed, selectionArgs.toArray(new String[selectionArgs.size()]));
+					try {
+						while (c.moveToNext()) {
+							notifyUpdateListeners(Changes.ACTION_REMOVE, name, c.getLong(1));
+						}
+					} finally {
+						c.close();
 					}
-					current.moveToNext();
+				}
+				args.clear();
+				args.addAll(selectionArgs);
+				mOperationsDone += executeUpdateDelete("DELETE FROM " + name + " WHERE " + BaseColumns._ID
+						+ " IN (SELECT " + BaseColumns._ID + " FROM (" + removed + "))", args);
+			}
+			return true;
+		} finally {
+			mDb.execSQL("DROP TABLE IF EXISTS temp." + tempTable);
+		}
+	}
+
+	/**
+	 * Queries the pending updates and deletes of the given tables.
+	 */
+	private Cursor queryPendingChanges(Collection<Table> tables) {
+		StringBuilder selection = new StringBuilder();
+		String[] selectionArgs = new String[tables.size()];
+		selection.append(Changes.COLUMN_ACTION).append(" IN (").append(Changes.ACTION_UPDATE).append(", ")
+				.append(Changes.ACTION_REMOVE).append(") AND ").append(Changes.COLUMN_TABLE).append(" IN (");
+		int i = 0;
+		for (Table t : tables) {
+			if (i > 0) {
+				selection.append(", ");
+			}
+			selection.append('?');
+			selectionArgs[i++] = t.getName();
+		}
+		selection.append(')');
+		return mDb.query(Changes.TABLE_NAME, new String[] { Changes.COLUMN_TABLE, Changes.COLUMN_ID,
+				Changes.COLUMN_ACTION }, selection.toString(), selectionArgs, null, null, null);
+	}
+
+	/**
+	 * Applies the entries of a delta update. In contrast to
+	 * {@link #merge(Table, Select, DataEntrySet, Date)}, local rows that are
+	 * not part of the update are kept.
+	 */
+	private void applyChanges(Table table, DataEntrySet operations) {
+		String syncIdCol = table.getColumnSyncId().getName();
+		LongHashSet pendingUpdates = getPendingIds(mPendingUpdates, table.getName());
+		LongHashSet pendingDeletes = getPendingIds(mPendingDeletes, table.getName());
+		for (DataEntry entry : operations) {
+			if (isCancelled()) {
+				break;
+			}
+			if (!pendingUpdates.contains(entry.serverId) && !pendingDeletes.contains(entry.serverId)) {
+				mOperationsDone += insertOrUpdate(table.getName(), entry.values, syncIdCol, entry.serverId);
+			}
+			++mEntriesDone;
+			commitIfDue(table);
+		}
+	}
+
+	/**
+	 * Deletes the entities that have been reported as deleted by a delta
+	 * update.
+	 */
+	private void applyDeletions() {
+		for (Map.Entry<Table, List<Long>> e : mDeletedEntries.entrySet()) {
+			String table = e.getKey().getName();
+			String syncIdCol = e.getKey().getColumnSyncId().getName();
+			for (long serverId : e.getValue()) {
+				if (isCancelled()) {
+					return;
+				}
+				int deleted = mStatements.delete(table, syncIdCol + " = ?", new Object[] { serverId });
+				if (deleted > 0) {
+					notifyUpdateListeners(Changes.ACTION_REMOVE, table, serverId);
+					mOperationsDone += deleted;
+				}
+				++mEntriesDone;
+				commitIfDue(e.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Merges the entries of a delegate table parent by parent: the children
+	 * of each parent are merged with its local children (see
+	 * {@link #mergeJoin(Table, LocalRows, CachedIterator, long, boolean, LongHashSet, LongHashSet)}
+	 * ). Local children that are missing are deleted. This is only possible
+	 * if always ALL delegate entries of a parent entity are returned by the
+	 * server.
+	 */
+	private void applyDelegate(Table table, DataEntrySet operations) {
+		String syncIdCol = table.getColumnSyncId().getName();
+		LongHashSet pendingUpdates = getPendingIds(mPendingUpdates, table.getName());
+		LongHashSet pendingDeletes = getPendingIds(mPendingDeletes, table.getName());
+		CachedIterator<DataEntry> i = new CachedIterator<DataEntry>(operations.iterator(), NO_DATA);
+		LocalRows current = null;
+		while (!i.isAfterLast() && !isCancelled()) {
+			DataEntry entry = i.getValue();
+			if (!table.hasColumnParentId() || entry.parentId == 0L) {
+				// entries without parent are written as they are:
+				if (!pendingDeletes.contains(entry.serverId)) {
+					mOperationsDone += insertOrUpdate(table.getName(), entry.values, syncIdCol, entry.serverId);
+				}
+				i.moveToNext();
+				++mEntriesDone;
+				commitIfDue(table);
+			} else {
+				if (current == null) {
+					current = new LocalRows(table, table.getName());
+				}
+				current.reset(table.getColumnParentId().getName() + " = ?",
+						new String[] { String.valueOf(entry.parentId) });
+				mergeJoin(table, current, i, entry.parentId, true, pendingUpdates, pendingDeletes);
+			}
+		}
+		if (isCancelled()) {
+			Debug.debug("cancelled");
+		}
+	}
+
+	/**
+	 * Inserts or updates a chunk of entries of the main table that has been
+	 * received in pipelined mode.
+	 */
+	private void applyChunk(List<DataEntry> chunk) {
+		String table = mMainTable.getName();
+		String syncIdCol = mMainTable.getColumnSyncId().getName();
+		LongHashSet pendingUpdates = getPendingIds(mPendingUpdates, table);
+		LongHashSet pendingDeletes = getPendingIds(mPendingDeletes, table);
+		// sorting keeps the writes local in the sync id index:
+		Collections.sort(chunk);
+		for (DataEntry entry : chunk) {
+			if (isCancelled()) {
+				break;
+			}
+			if (!mReceivedIds.add(entry.serverId)) {
+				// the first entry of an entity wins, as in DataEntrySet:
+				continue;
+			}
+			if (!pendingUpdates.contains(entry.serverId) && !pendingDeletes.contains(entry.serverId)) {
+				mOperationsDone += insertOrUpdate(table, entry.values, syncIdCol, entry.serverId);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the local rows of the main table that have not been received in
+	 * pipelined mode. Like in {@link #merge(Table, Select, DataEntrySet, Date)}
+	 * , only tables with a creation date are affected.
+	 */
+	private void deleteNotReceived() {
+		if (!mMainTable.hasColumnCreationDate()) {
+			return;
+		}
+		String table = mMainTable.getName();
+		Cursor current = mDb.query(mCurrentSelection.getTable(), new String[] { BaseColumns._ID,
+				mMainTable.getColumnSyncId().getName() }, mCurrentSelection.getSelection(),
+				mCurrentSelection.getSelectionArgs(), null, null, mCurrentSelection.getSortOrder());
+		try {
+			while (current.moveToNext() && !isCancelled()) {
+				long serverId = current.getLong(1);
+				if (serverId > 0 && !mReceivedIds.contains(serverId)) {
+					notifyUpdateListeners(Changes.ACTION_REMOVE, table, serverId);
+					mOperationsDone += mStatements.delete(table, "_id = ?", new Object[] { current.getLong(0) });
 				}
 			}
 		} finally {
 			current.close();
 		}
+	}
+
+	/**
+	 * Passes the entries of the main table to the given pipeline instead of
+	 * collecting them, so they can be written by
+	 * {@link #performPipelinedOperations(Date)} while the download continues.
+	 * All other entries are collected as usual. This must be called before
+	 * the download starts.
+	 * 
+	 * @param source
+	 *            The adapter that downloads the entries. It is cancelled if
+	 *            the writer stops reading before the download is complete.
+	 */
+	public void setPipeline(DataPipeline pipeline, DataAdapter source) {
+		mPipeline = pipeline;
+		mPipelineSource = source;
+	}
+
+	/**
+	 * Writes the entries of the main table as they arrive through the
+	 * pipeline (see {@link #setPipeline(DataPipeline, DataAdapter)}) and, once the
+	 * download is complete, deletes the rows that have not been received and
+	 * writes the delegates. This must be called on the thread that owns the
+	 * transaction, concurrently with the download. If the download is
+	 * aborted, this returns early and the transaction must not be committed.
+	 */
+	public void performPipelinedOperations(Date startTime) {
+
+		provider.addChangesListener(this);
+		try {
+			loadPendingChanges(Collections.singletonList(mMainTable));
+			mReceivedIds = new LongHashSet((int) Math.min(Math.max(mExpectedCount, 0L), 1L << 20));
+
+			List<DataEntry> chunk;
+			while (!isCancelled() && (chunk = mPipeline.take()) != null) {
+				applyChunk(chunk);
+			}
+			if (mPipeline.isAborted()) {
+				Debug.debug("aborted");
+				return;
+			}
+
+			// the download is complete, all entries are available now:
+			if (!mDelta && mOperations.containsKey(mMainTable) && !isCancelled()) {
+				deleteNotReceived();
+			}
+
+			List<Table> delegates = new ArrayList<Table>(mOperations.keySet());
+			delegates.remove(mMainTable);
+			Collections.sort(delegates, new Comparator<Table>() {
+
+				@Override
+				public int compare(Table lhs, Table rhs) {
+					return mDepthMap.get(lhs).compareTo(mDepthMap.get(rhs));
+				}
+
+			});
+			Set<Table> pendingTables = new HashSet<Table>(delegates);
+			pendingTables.addAll(mDeletedEntries.keySet());
+			pendingTables.remove(mMainTable);
+			loadPendingChanges(pendingTables);
+
+			for (Table table : delegates) {
+				if (isCancelled()) {
+					break;
+				}
+				applyDelegate(table, mOperations.get(table));
+			}
+			if (!isCancelled()) {
+				applyDeletions();
+			}
+		} finally {
+			mPipeline.close();
+			provider.removeChangesListener(this);
+		}
+
+		Debug.info("Operations done: %d, unchanged rows: %d", mOperationsDone, mRowsUnchanged);
+		mListener.onFinished();
 
 	}
 
@@ -358,28 +1112,36 @@ public class DataProcessor implements DataAdapterListener, ChangesListener {
 
 		if (!isCancelled()) {
 
-			// TODO: this should be always empty
-			Cursor pendingChanges = mDb.query(Changes.TABLE_NAME, new String[] { Changes.COLUMN_TABLE,
-					Changes.COLUMN_ID, Changes.COLUMN_ACTION }, null, null, null, null, null);
+			provider.addChangesListener(this);
 
 			try {
 
-				mPendingUpdates = getPendingActions(pendingChanges, Changes.ACTION_UPDATE);
-				provider.addChangesListener(this);
-				mPendingDeletes = getPendingActions(pendingChanges, Changes.ACTION_REMOVE);
+				loadPendingChanges(mOperations.keySet());
+
+				mEntriesTotal = 0L;
+				for (DataEntrySet set : mOperations.values()) {
+					mEntriesTotal += set.size();
+				}
+				for (List<Long> deleted : mDeletedEntries.values()) {
+					mEntriesTotal += deleted.size();
+				}
+				mEntriesDone = 0L;
+				mChunksCommitted = 0;
+				mChunkStartOperations = mOperationsDone;
+				mChunkStartTime = SystemClock.uptimeMillis();
 
-				List<Map.Entry<Table, SortedSet<DataEntry>>> operations = new ArrayList<Map.Entry<Table, SortedSet<DataEntry>>>(
+				List<Map.Entry<Table, DataEntrySet>> operations = new ArrayList<Map.Entry<Table, DataEntrySet>>(
 						mOperations.entrySet());
-				Collections.sort(operations, new Comparator<Map.Entry<Table, SortedSet<DataEntry>>>() {
+				Collections.sort(operations, new Comparator<Map.Entry<Table, DataEntrySet>>() {
 
 					@Override
-					public int compare(Entry<Table, SortedSet<DataEntry>> lhs, Entry<Table, SortedSet<DataEntry>> rhs) {
+					public int compare(Entry<Table, DataEntrySet> lhs, Entry<Table, DataEntrySet> rhs) {
 						return mDepthMap.get(lhs.getKey()).compareTo(mDepthMap.get(rhs.getKey()));
 					}
 
 				});
 
-				for (Map.Entry<Table, SortedSet<DataEntry>> e : operations) {
+				for (Map.Entry<Table, DataEntrySet> e : operations) {
 
 					if (isCancelled()) {
 						Debug.debug("cancelled");
@@ -387,81 +1149,203 @@ public class DataProcessor implements DataAdapterListener, ChangesListener {
 					}
 
 					Table table = e.getKey();
-					String syncIdCol = table.getColumnSyncId().getName();
 
-					if (table.equals(mMainTable)) {
-						merge(table, mCurrentSelection, e.getValue(), startTime);
-					} else {
-						long currentParentId = 0L;
-						// process non maintable entries
-						for (DataEntry entry : e.getValue()) {
-							if (isCancelled()) {
-								Debug.debug("cancelled");
-								break;
-							}
-
-							if (entry.getParentId() != currentParentId) {
-								currentParentId = entry.getParentId();
-								// delete all old entries. This is only possible
-								// if always ALL delegate entries of a parent
-								// entity are returned by the
-								// server.
-								mDb.delete(table.getName(), table.getColumnParentId().getName() + " = ?",
-										new String[] { String.valueOf(currentParentId) });
-							}
-
-							// no deletes are propagated along delegates:
-							if (!mPendingDeletes.contains(getSignature(table.getName(),
-									entry.values.getAsLong(syncIdCol)))) {
-								mOperationsDone += insertOrUpdate(table.getName(), entry.values, syncIdCol,
-										entry.serverId);
-							}
+					if (table.equals(mMainTable) && mDelta) {
+						applyChanges(table, e.getValue());
+					} else if (table.equals(mMainTable)) {
+						long mergeStartTime = System.currentTimeMillis();
+						long operationsBefore = mOperationsDone;
+						boolean setBased = provider.isSetBasedMerge(table)
+								&& mergeSetBased(table, mCurrentSelection, e.getValue());
+						if (!setBased) {
+							merge(table, mCurrentSelection, e.getValue(), startTime);
+						} else {
+							mEntriesDone += e.getValue().size();
+							commitIfDue(table);
 						}
+						Debug.info("%s merge of %s: %d operations in %d ms", (setBased) ? "Set-based" : "Row-based",
+								table.getName(), mOperationsDone - operationsBefore, System.currentTimeMillis()
+										- mergeStartTime);
+					} else {
+						applyDelegate(table, e.getValue());
 					}
 				}
+				if (!isCancelled()) {
+					applyDeletions();
+				}
 			} finally {
-				pendingChanges.close();
 				provider.removeChangesListener(this);
 			}
 		} else {
 			Debug.debug("cancelled");
 		}
 
-		Debug.info("Operations done: " + mOperationsDone);
+		Debug.info("Operations done: %d, unchanged rows: %d", mOperationsDone, mRowsUnchanged);
 		mListener.onFinished();
 
 	}
 
+	private DataEntrySet newDataEntrySet() {
+		return new DataEntrySet(provider.getContext().getCacheDir());
+	}
+
+	/**
+	 * Moves the largest in-memory sets of entries to disk until the memory
+	 * budget is met again.
+	 */
+	private void enforceMemoryBudget() {
+		while (mMemoryUsed > mMemoryBudget) {
+			DataEntrySet largest = null;
+			for (DataEntrySet set : mOperations.values()) {
+				if (largest == null || set.getBufferSize() > largest.getBufferSize()) {
+					largest = set;
+				}
+			}
+			long freed = (largest != null) ? largest.spill() : 0L;
+			if (freed == 0L) {
+				// spilling failed, keep the entries in memory:
+				mMemoryBudget = Long.MAX_VALUE;
+				return;
+			}
+			mMemoryUsed -= freed;
+			Debug.debug("Spilled %d bytes of %s to disk (%d runs)", freed, mUser, largest.getRunCount());
+		}
+	}
+
 	@Override
 	public void onDataEntry(Table table, int depth, ContentValues data) {
-		SortedSet<DataEntry> inserts = mOperations.get(table);
+		if (table.hasContentHash()) {
+			data.put(Table.COLUMN_SYNC_HASH, table.getContentHash(data));
+		}
+
+		DataEntrySet inserts = mOperations.get(table);
 		if (inserts == null) {
-			inserts = new TreeSet<DataEntry>();
+			inserts = newDataEntrySet();
 			mOperations.put(table, inserts);
 			mDepthMap.put(table, depth);
 		}
 
 		final String changeIdColumn = table.getColumnSyncId().getName();
+		DataEntry entry;
 		if (table.hasColumnParentId()) {
 			final String parentIdColumn = table.getColumnParentId().getName();
-			inserts.add(new DataEntry(data.getAsLong(parentIdColumn), data.getAsLong(changeIdColumn), data));
+			entry = new DataEntry(data.getAsLong(parentIdColumn), data.getAsLong(changeIdColumn), data);
+		} else {
+			entry = new DataEntry(data.getAsLong(changeIdColumn), data);
+		}
+		mAffectedTables.add(table.getName());
+
+		if (mPipeline != null && table.equals(mMainTable)) {
+			if (!mPipeline.put(entry) && !isCancelled()) {
+				// the writer has stopped, the rest would be dropped anyway:
+				Debug.debug("Pipeline closed, stopping the download");
+				cancel();
+				mPipelineSource.cancel();
+			}
 		} else {
-			inserts.add(new DataEntry(data.getAsLong(changeIdColumn), data));
+			mMemoryUsed += inserts.add(entry);
+			enforceMemoryBudget();
 		}
+	}
 
+	@Override
+	public void onDeletedEntry(Table table, long serverId) {
+		List<Long> deleted = mDeletedEntries.get(table);
+		if (deleted == null) {
+			deleted = new ArrayList<Long>();
+			mDeletedEntries.put(table, deleted);
+		}
+		deleted.add(serverId);
 		mAffectedTables.add(table.getName());
 	}
 
+	@Override
+	public void onSyncToken(String token) {
+		mSyncToken = token;
+	}
+
+	/**
+	 * @return the token that has been reported by the adapter or {@code null}
+	 *         if there is none.
+	 */
+	public String getSyncToken() {
+		return mSyncToken;
+	}
+
+	/**
+	 * Defines whether the entries received are only the changes since the
+	 * last update ({@code true}) or the complete collection.
+	 */
+	public void setDelta(boolean delta) {
+		mDelta = delta;
+	}
+
+	public boolean isDelta() {
+		return mDelta;
+	}
+
+	/**
+	 * Discards everything that has been received so far, e.g. to start over
+	 * with a full update after a delta update has been rejected.
+	 */
+	public void reset() {
+		close();
+		mOperations.clear();
+		mDepthMap.clear();
+		mDeletedEntries.clear();
+		mSyncToken = null;
+	}
+
+	/**
+	 * Removes the entries that have been moved to disk. This must be called
+	 * once the operations have been performed.
+	 */
+	public void close() {
+		for (DataEntrySet set : mOperations.values()) {
+			set.close();
+		}
+		mMemoryUsed = 0L;
+		if (mOwnsStatements) {
+			mStatements.clear();
+		}
+	}
+
 	public void notifyChanges() {
 		if (mOperationsDone > 0) {
 			for (String table : mAffectedTables) {
-				Uri uri = provider.getUri(mUser, table);
-				ResolvedUri resolvedUri = provider.resolveUri(uri);
-				provider.notifyChange(uri, resolvedUri);
+				ResolvedUri resolvedUri = provider.resolve(mUser, table);
+				provider.notifyChange(resolvedUri.getTableUri(), resolvedUri);
 			}
 		}
 	}
 
+	/**
+	 * @return the depth at which entries of the given table have been
+	 *         received or {@code -1} if none have been received.
+	 */
+	public int getDepth(Table table) {
+		Integer depth = mDepthMap.get(table);
+		return (depth != null) ? depth : -1;
+	}
+
+	/**
+	 * @return the number of rows that have been inserted, updated or deleted.
+	 */
+	public long getOperationsDone() {
+		return mOperationsDone;
+	}
+
+	/**
+	 * @return the number of rows that have not been updated because their
+	 *         content hash has not changed (see
+	 *         {@link cat.mobilejazz.database.annotation.ContentHash}). They
+	 *         are not counted as operations, so if no other rows have changed,
+	 *         no observers are notified.
+	 */
+	public long getRowsUnchanged() {
+		return mRowsUnchanged;
+	}
+
 	public synchronized boolean isCancelled() {
 		return mCancelled;
 	}
@@ -474,17 +1358,44 @@ public class DataProcessor implements DataAdapterListener, ChangesListener {
 	public void onEmptyTable(Table table) {
 		Debug.info("onEmptyTable(%s)", table);
 		if (!mOperations.containsKey(table)) {
-			mOperations.put(table, new TreeSet<DataEntry>());
+			mOperations.put(table, newDataEntrySet());
 			mDepthMap.put(table, 0);
 			mAffectedTables.add(table.getName());
 		}
 	}
 
+	/**
+	 * @return the pending ids that a change with the given action belongs to
+	 *         or {@code null} if the action is not tracked.
+	 */
+	private ConcurrentHashMap<String, LongHashSet> getPending(ContentValues change) {
+		int action = change.getAsInteger(Changes.COLUMN_ACTION);
+		if (action == Changes.ACTION_UPDATE) {
+			return mPendingUpdates;
+		} else if (action == Changes.ACTION_REMOVE) {
+			// with chunked commits, local deletes can happen during a merge:
+			return mPendingDeletes;
+		} else {
+			return null;
+		}
+	}
+
 	@Override
 	public void onInsertChange(ContentValues change) {
-		if (change.getAsInteger(Changes.COLUMN_ACTION) == Changes.ACTION_UPDATE) {
-			mPendingUpdates.add(getSignature(change.getAsString(Changes.COLUMN_TABLE),
-					change.getAsLong(Changes.COLUMN_ID)));
+		ConcurrentHashMap<String, LongHashSet> pending = getPending(change);
+		if (pending != null) {
+			getPendingIds(pending, change.getAsString(Changes.COLUMN_TABLE)).add(change.getAsLong(Changes.COLUMN_ID));
+		}
+	}
+
+	@Override
+	public void onInsertChanges(ContentValues change, long[] ids) {
+		ConcurrentHashMap<String, LongHashSet> pending = getPending(change);
+		if (pending != null) {
+			LongHashSet pendingIds = getPendingIds(pending, change.getAsString(Changes.COLUMN_TABLE));
+			for (long id : ids) {
+				pendingIds.add(id);
+			}
 		}
 	}
 
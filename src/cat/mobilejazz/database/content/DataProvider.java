@@ -4,15 +4,26 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.http.auth.AuthenticationException;
 import org.json.JSONException;
@@ -27,16 +38,17 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
-import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteTransactionListener;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
-import android.util.Log;
 import cat.mobilejazz.database.Column;
 import cat.mobilejazz.database.Database;
 import cat.mobilejazz.database.ProgressListener;
@@ -44,6 +56,7 @@ import cat.mobilejazz.database.SQLUtils;
 import cat.mobilejazz.database.Storage;
 import cat.mobilejazz.database.Table;
 import cat.mobilejazz.database.View;
+import cat.mobilejazz.database.WalOptions;
 import cat.mobilejazz.database.annotation.UID;
 import cat.mobilejazz.database.content.DataProcessor.DatabaseUpdateListener;
 import cat.mobilejazz.utilities.CompatibilityUtils;
@@ -71,6 +84,11 @@ import cat.mobilejazz.utilities.debug.Debug;
  * not part of the content provider interface, this parameter allows to define
  * an arbitrary SQL GROUP BY suffix. Note that you do not need to specify
  * {@code "GROUP BY"} as part of the {@link String}.</li>
+ * <li>Limit ({@link #QUERY_KEY_LIMIT}, {@link int}): The maximum number of rows
+ * a query returns. Together with a selection that seeks past the last row of
+ * the previous page, this allows to read a table page by page (see
+ * {@link cat.mobilejazz.database.query.Select.Builder#seekAfter(String, Object, long)}
+ * ).</li>
  * <li>Custom action ({@link #QUERY_KEY_ACTION}, {@link String}): Allows to
  * define a custom action for the change that is to be recorded. If this is not
  * specified, the action will be analogous to the type of the sql statement
@@ -104,33 +122,213 @@ public abstract class DataProvider extends ContentProvider {
 
 	public static final String QUERY_KEY_INSERT_OR_UPDATE = "iou";
 
+	public static final String QUERY_KEY_LIMIT = "lim";
+
+	private static final Uri[] NO_URIS = new Uri[0];
+
 	private static SimpleDateFormat debugDateFormat = new SimpleDateFormat("HH:mm:ss.S");
 
-	private static class Notification {
-		private Uri uri;
-		private ResolvedUri resolvedUri;
+	/**
+	 * Collects the notifications of a single thread while it applies a batch
+	 * or holds a transaction that has been started by
+	 * {@link DataProvider#beginTransaction(Account)}. Uris are stored without
+	 * their query parameters, so duplicate notifications of the same table,
+	 * row or dependent view collapse into one. Aggregations may be nested; the
+	 * notifications are delivered when the outermost one ends and are dropped
+	 * if any level has not been marked as successful.
+	 */
+	private static class NotificationSet {
+
+		private int depth;
+		private BitSet successful = new BitSet();
+		private boolean failed;
+
+		/**
+		 * Maps each uri to whether it should be synced to the network.
+		 */
+		private LinkedHashMap<Uri, Boolean> uris = new LinkedHashMap<Uri, Boolean>();
+
+		public void begin() {
+			++depth;
+			successful.clear(depth);
+		}
+
+		public void setSuccessful() {
+			successful.set(depth);
+		}
+
+		/**
+		 * @return {@code true} if the outermost aggregation has ended.
+		 */
+		public boolean end() {
+			if (!successful.get(depth)) {
+				failed = true;
+			}
+			return --depth == 0;
+		}
 
-		public Notification(Uri uri, ResolvedUri resolvedUri) {
-			this.uri = uri;
-			this.resolvedUri = resolvedUri;
+		public void add(Uri uri, boolean syncToNetwork) {
+			Boolean previous = uris.put(uri, syncToNetwork);
+			if (previous != null && previous) {
+				uris.put(uri, true);
+			}
 		}
+
 	}
 
-	protected class ResolvedUri {
-		private String table;
-		private Account user;
+	/**
+	 * The parsed form of a content uri. Instances are immutable and are shared
+	 * between threads: uris without query parameters and id resolve to a single
+	 * instance per account and table, all others are cached by their string
+	 * representation (see {@link DataProvider#resolveUri(Uri)}).
+	 * 
+	 * Subclasses that build instances themselves, e.g. in an override of
+	 * {@link DataProvider#resolveUri(Uri)}, use
+	 * {@link DataProvider#newResolvedUri(String, String, Long, Bundle)}
+	 * instead of the former constructors, and {@link #withId(long)} instead of
+	 * {@link #setId(long)}, which only works on instances of their own.
+	 */
+	protected static final class ResolvedUri {
+		private final String table;
+		private final Account user;
 		private Long id;
-		Bundle queryParams;
-
-		public ResolvedUri(String table, String user, Long id, Bundle queryParams) {
+		private final Uri tableUri;
+		private final Uri[] dependencies;
+
+		private final boolean recordChanges;
+		private final boolean notify;
+		private final int action;
+		private final String changeValue;
+		private final String groupBy;
+		private final String limit;
+		private final String additionalData;
+		private final boolean insertOrUpdate;
+		private final boolean shared;
+
+		/**
+		 * All query parameters as strings, or the parameters given to
+		 * {@link DataProvider#newResolvedUri(String, String, Long, Bundle)}.
+		 * 
+		 * @deprecated use the getters. The bundle must not be modified.
+		 */
+		@Deprecated
+		final Bundle queryParams;
+
+		private ResolvedUri(String table, Account user, Uri tableUri, Uri[] dependencies) {
 			this.table = table;
-			this.user = new Account(user, getAccountType());
+			this.user = user;
+			this.id = null;
+			this.tableUri = tableUri;
+			this.dependencies = dependencies;
+			this.recordChanges = true;
+			this.notify = true;
+			this.action = -1;
+			this.changeValue = null;
+			this.groupBy = null;
+			this.limit = null;
+			this.additionalData = null;
+			this.insertOrUpdate = false;
+			this.shared = true;
+			this.queryParams = new Bundle();
+		}
+
+		private ResolvedUri(ResolvedUri base, Long id) {
+			this.table = base.table;
+			this.user = base.user;
+			this.id = id;
+			this.tableUri = base.tableUri;
+			this.dependencies = base.dependencies;
+			this.recordChanges = base.recordChanges;
+			this.notify = base.notify;
+			this.action = base.action;
+			this.changeValue = base.changeValue;
+			this.groupBy = base.groupBy;
+			this.limit = base.limit;
+			this.additionalData = base.additionalData;
+			this.insertOrUpdate = base.insertOrUpdate;
+			this.shared = base.shared;
+			this.queryParams = base.queryParams;
+		}
+
+		private ResolvedUri(ResolvedUri base, Long id, Uri uri) {
+			this.table = base.table;
+			this.user = base.user;
 			this.id = id;
-			this.queryParams = queryParams;
+			this.tableUri = base.tableUri;
+			this.dependencies = base.dependencies;
+			this.recordChanges = getBooleanQueryParameter(uri, QUERY_KEY_RECORD_CHANGES, true);
+			this.notify = getBooleanQueryParameter(uri, QUERY_KEY_NOTIFY, true);
+			this.action = getIntegerQueryParameter(uri, QUERY_KEY_ACTION, -1);
+			this.changeValue = uri.getQueryParameter(QUERY_KEY_CHANGE_VALUE);
+			this.groupBy = uri.getQueryParameter(QUERY_KEY_GROUP_BY);
+			this.limit = uri.getQueryParameter(QUERY_KEY_LIMIT);
+			this.additionalData = uri.getQueryParameter(QUERY_KEY_ADDITIONAL_DATA);
+			this.insertOrUpdate = getBooleanQueryParameter(uri, QUERY_KEY_INSERT_OR_UPDATE, false);
+			this.shared = true;
+			this.queryParams = getQueryParameters(uri);
+		}
+
+		private ResolvedUri(ResolvedUri base, Long id, Bundle queryParams) {
+			this.table = base.table;
+			this.user = base.user;
+			this.id = id;
+			this.tableUri = base.tableUri;
+			this.dependencies = base.dependencies;
+			this.recordChanges = getBoolean(queryParams, QUERY_KEY_RECORD_CHANGES, true);
+			this.notify = getBoolean(queryParams, QUERY_KEY_NOTIFY, true);
+			this.action = (queryParams != null && queryParams.containsKey(QUERY_KEY_ACTION)) ? queryParams
+					.getInt(QUERY_KEY_ACTION) : -1;
+			this.changeValue = (queryParams != null) ? queryParams.getString(QUERY_KEY_CHANGE_VALUE) : null;
+			this.groupBy = (queryParams != null) ? queryParams.getString(QUERY_KEY_GROUP_BY) : null;
+			this.limit = (queryParams != null) ? queryParams.getString(QUERY_KEY_LIMIT) : null;
+			this.additionalData = (queryParams != null) ? queryParams.getString(QUERY_KEY_ADDITIONAL_DATA) : null;
+			this.insertOrUpdate = getBoolean(queryParams, QUERY_KEY_INSERT_OR_UPDATE, false);
+			this.shared = false;
+			this.queryParams = (queryParams != null) ? new Bundle(queryParams) : new Bundle();
+		}
+
+		private static Bundle getQueryParameters(Uri uri) {
+			Bundle result = new Bundle();
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				for (String key : uri.getQueryParameterNames()) {
+					result.putString(key, uri.getQueryParameter(key));
+				}
+			} else if (uri.getEncodedQuery() != null) {
+				for (String parameter : uri.getEncodedQuery().split("&")) {
+					int separator = parameter.indexOf('=');
+					String key = Uri.decode((separator < 0) ? parameter : parameter.substring(0, separator));
+					if (!result.containsKey(key)) {
+						result.putString(key, uri.getQueryParameter(key));
+					}
+				}
+			}
+			return result;
+		}
+
+		private static boolean getBoolean(Bundle queryParams, String key, boolean defaultValue) {
+			if (queryParams == null || !queryParams.containsKey(key)) {
+				return defaultValue;
+			} else {
+				return queryParams.getBoolean(key);
+			}
+		}
+
+		private static boolean getBooleanQueryParameter(Uri uri, String key, boolean defaultValue) {
+			String value = uri.getQueryParameter(key);
+			if (value == null) {
+				return defaultValue;
+			} else {
+				return !value.equals(QUERY_FALSE);
+			}
 		}
 
-		public ResolvedUri(String table, String user, Bundle queryParams) {
-			this(table, user, null, queryParams);
+		private static int getIntegerQueryParameter(Uri uri, String key, int defaultValue) {
+			String value = uri.getQueryParameter(key);
+			if (value == null) {
+				return defaultValue;
+			} else {
+				return Integer.parseInt(value);
+			}
 		}
 
 		public String extendSelection(String selection) {
@@ -146,29 +344,283 @@ public abstract class DataProvider extends ContentProvider {
 			}
 		}
 
+		public String getTable() {
+			return table;
+		}
+
+		public Account getUser() {
+			return user;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		/**
+		 * @return the uri of the table without id and query parameters.
+		 */
+		public Uri getTableUri() {
+			return tableUri;
+		}
+
+		public boolean isRecordChanges() {
+			return recordChanges;
+		}
+
+		public boolean isNotify() {
+			return notify;
+		}
+
+		public int getAction() {
+			return action;
+		}
+
+		public String getChangeValue() {
+			return changeValue;
+		}
+
+		public String getGroupBy() {
+			return groupBy;
+		}
+
+		/**
+		 * @return the maximum number of rows of a query or {@code null} if
+		 *         there is no limit.
+		 */
+		public String getLimit() {
+			return limit;
+		}
+
+		public String getAdditionalData() {
+			return additionalData;
+		}
+
+		public boolean isInsertOrUpdate() {
+			return insertOrUpdate;
+		}
+
 		public String getString(String queryKey) {
-			return queryParams.getString(queryKey);
+			if (QUERY_KEY_CHANGE_VALUE.equals(queryKey)) {
+				return changeValue;
+			} else if (QUERY_KEY_GROUP_BY.equals(queryKey)) {
+				return groupBy;
+			} else if (QUERY_KEY_LIMIT.equals(queryKey)) {
+				return limit;
+			} else if (QUERY_KEY_ADDITIONAL_DATA.equals(queryKey)) {
+				return additionalData;
+			} else {
+				Object value = queryParams.get(queryKey);
+				return (value != null) ? value.toString() : null;
+			}
 		}
 
 		public boolean getBoolean(String queryKey) {
-			return queryParams.getBoolean(queryKey);
+			if (QUERY_KEY_RECORD_CHANGES.equals(queryKey)) {
+				return recordChanges;
+			} else if (QUERY_KEY_NOTIFY.equals(queryKey)) {
+				return notify;
+			} else if (QUERY_KEY_INSERT_OR_UPDATE.equals(queryKey)) {
+				return insertOrUpdate;
+			} else {
+				Object value = queryParams.get(queryKey);
+				return (value instanceof Boolean) ? (Boolean) value : (value != null && !value.equals(QUERY_FALSE));
+			}
 		}
 
 		public int getInt(String queryKey) {
-			return queryParams.getInt(queryKey);
+			if (QUERY_KEY_ACTION.equals(queryKey)) {
+				return action;
+			}
+			Object value = queryParams.get(queryKey);
+			if (value instanceof Number) {
+				return ((Number) value).intValue();
+			} else if (value != null) {
+				return Integer.parseInt(value.toString());
+			} else {
+				return 0;
+			}
 		}
 
+		/**
+		 * @return the value of a parameter of its own, which may exceed the
+		 *         range of an {@code int}, or {@code 0} if it is not set.
+		 */
 		public long getLong(String queryKey) {
-			return queryParams.getLong(queryKey);
+			if (QUERY_KEY_ACTION.equals(queryKey)) {
+				return action;
+			}
+			Object value = queryParams.get(queryKey);
+			if (value instanceof Number) {
+				return ((Number) value).longValue();
+			} else if (value != null) {
+				return Long.parseLong(value.toString());
+			} else {
+				return 0L;
+			}
 		}
 
+		/**
+		 * Changes the id of an instance that has been created by
+		 * {@link DataProvider#newResolvedUri(String, String, Long, Bundle)}.
+		 * 
+		 * @throws IllegalStateException
+		 *             if this instance has been resolved from a uri, as those
+		 *             are shared.
+		 * @deprecated use {@link #withId(long)}.
+		 */
+		@Deprecated
 		public void setId(long id) {
+			if (shared) {
+				throw new IllegalStateException("Resolved uris are shared, use withId(long)");
+			}
 			this.id = id;
 		}
+
+		/**
+		 * @return a copy of this instance that refers to the row with the given
+		 *         id.
+		 */
+		public ResolvedUri withId(long id) {
+			return new ResolvedUri(this, id);
+		}
+	}
+
+	/**
+	 * The maximum number of parsed uris with query parameters or ids that are
+	 * cached by {@link #resolveUri(Uri)}.
+	 * 
+	 * @return {@code 64} in the default implementation.
+	 */
+	protected int getResolvedUriCacheSize() {
+		return 64;
+	}
+
+	/**
+	 * The number of query results that are cached (see {@link QueryCache}).
+	 * Results are cached per account, table or view, projection, selection,
+	 * selection arguments, sort order and grouping, and are invalidated when
+	 * the table or any table of the view changes through this provider.
+	 * Changes that are written to the database directly, bypassing the
+	 * provider, are not noticed.
+	 * 
+	 * @return {@code 0} in the default implementation, which disables the
+	 *         cache.
+	 */
+	protected int getQueryCacheSize() {
+		return 0;
+	}
+
+	/**
+	 * Query results with more rows are not cached.
+	 * 
+	 * @return {@code 500} in the default implementation.
+	 */
+	protected int getQueryCacheMaxRows() {
+		return 500;
+	}
+
+	/**
+	 * @return the cache of query results or {@code null} if it is disabled
+	 *         (see {@link #getQueryCacheSize()}).
+	 */
+	public QueryCache getQueryCache() {
+		return mQueryCache;
+	}
+
+	/**
+	 * Invalidates the cached queries of a table and its views. If the calling
+	 * thread holds a transaction, the table is held in the cache until the
+	 * transaction has ended (see {@link QueryCache#hold(String, String)}), so
+	 * no thread caches the previous data again in the meantime. Holds of a
+	 * transaction that a subclass has ended directly on the database are
+	 * released the next time the thread uses this provider.
+	 */
+	private void invalidateQueries(ResolvedUri resolvedUri) {
+		if (mQueryCache == null) {
+			return;
+		}
+		SQLiteDatabase db = getWritableDatabase(resolvedUri.user);
+		if (db.inTransaction()) {
+			Set<ResolvedUri> pending = mPendingInvalidations.get();
+			if (pending == null) {
+				pending = new HashSet<ResolvedUri>();
+				mPendingInvalidations.set(pending);
+			}
+			if (pending.add(resolve(resolvedUri.user.name, resolvedUri.table))) {
+				holdQueries(resolvedUri.user.name, resolvedUri.table);
+			}
+		} else {
+			onTransactionEnded(resolvedUri.user, db);
+			invalidateQueries(resolvedUri.user.name, resolvedUri.table);
+		}
+	}
+
+	private void invalidateQueries(String user, String table) {
+		mQueryCache.invalidate(user, table);
+		String[] views = mDependentViews.get(table);
+		if (views != null) {
+			for (String view : views) {
+				mQueryCache.invalidate(user, view);
+			}
+		}
+	}
+
+	private void holdQueries(String user, String table) {
+		mQueryCache.hold(user, table);
+		String[] views = mDependentViews.get(table);
+		if (views != null) {
+			for (String view : views) {
+				mQueryCache.hold(user, view);
+			}
+		}
+	}
+
+	private void releaseQueries(String user, String table) {
+		mQueryCache.release(user, table);
+		String[] views = mDependentViews.get(table);
+		if (views != null) {
+			for (String view : views) {
+				mQueryCache.release(user, view);
+			}
+		}
+	}
+
+	/**
+	 * Releases the tables held by the calling thread on the given account's
+	 * database.
+	 */
+	private void invalidateQueries(Account account) {
+		Set<ResolvedUri> pending = (mQueryCache != null) ? mPendingInvalidations.get() : null;
+		if (pending != null && !pending.isEmpty()) {
+			Iterator<ResolvedUri> i = pending.iterator();
+			while (i.hasNext()) {
+				ResolvedUri r = i.next();
+				if (r.user.name.equals(account.name)) {
+					releaseQueries(r.user.name, r.table);
+					i.remove();
+				}
+			}
+		}
+	}
+
+	private void onTransactionEnded(Account account, SQLiteDatabase db) {
+		if (!db.inTransaction()) {
+			invalidateQueries(account);
+		}
+	}
+
+	/**
+	 * Like {@link #onTransactionEnded(Account, SQLiteDatabase)} after a
+	 * transaction that has changed the database. Once the outermost one has
+	 * ended, the materialized views the changes have made out of date are
+	 * refreshed, so neither they nor the views that read them stay out of date
+	 * until the next update from the server.
+	 */
+	private void onWriteEnded(Account account, SQLiteDatabase db) {
+		onTransactionEnded(account, db);
+		refreshMaterializedViews(db);
 	}
 
-	private static final int ROW_URI = 0;
-	private static final int TABLE_URI = 1;
 
 	protected Uri getUri(String user, String table) {
 		return new Uri.Builder().scheme("content").authority(getAuthority()).appendPath(user).appendPath(table).build();
@@ -188,21 +640,26 @@ public abstract class DataProvider extends ContentProvider {
 		return ContentUris.withAppendedId(withParams(uri, recordChange), id);
 	}
 
-	/**
-	 * A UriMatcher instance
-	 */
-	private UriMatcher sUriMatcher;
+	private ConcurrentHashMap<String, ConcurrentHashMap<String, ResolvedUri>> mResolvedTables;
+	private LinkedHashMap<String, ResolvedUri> mResolvedUris;
 
 	private Map<String, SQLiteOpenHelper> mDatabaseHelpers;
-	private Map<Uri, List<Uri>> mDependencies;
+	private Map<String, SQLiteDatabase> mConfiguredDatabases;
+	private Map<String, StatementCache> mStatementCaches;
+	private Map<String, String[]> mDependentViews;
 
 	private Map<String, String[]> mUIDs;
+	private Map<String, UIDAllocator> mUIDAllocators;
 
-	private Boolean mAggregateNotifications = false;
-	private List<Notification> mNotifications;
+	private ThreadLocal<NotificationSet> mNotifications;
+	private ThreadLocal<Set<ResolvedUri>> mPendingInvalidations;
+	private QueryCache mQueryCache;
 
 	private ConcurrentLinkedQueue<ChangesListener> mChangesListeners;
 
+	private DataProviderMetrics mMetrics;
+	private QueryPlanInspector mQueryPlanInspector;
+
 	protected abstract Database getDatabase();
 
 	protected abstract String getAccountType();
@@ -223,17 +680,41 @@ public abstract class DataProvider extends ContentProvider {
 	@Override
 	public boolean onCreate() {
 		mChangesListeners = new ConcurrentLinkedQueue<ChangesListener>();
+		mMetrics = newMetrics();
+		mQueryPlanInspector = newQueryPlanInspector();
 		mDatabaseHelpers = new HashMap<String, SQLiteOpenHelper>();
-		mDependencies = new WeakHashMap<Uri, List<Uri>>();
-		mNotifications = new ArrayList<Notification>();
+		mConfiguredDatabases = new HashMap<String, SQLiteDatabase>();
+		mStatementCaches = new HashMap<String, StatementCache>();
+		mNotifications = new ThreadLocal<NotificationSet>();
+		mPendingInvalidations = new ThreadLocal<Set<ResolvedUri>>();
+		int queryCacheSize = getQueryCacheSize();
+		mQueryCache = (queryCacheSize > 0) ? new QueryCache(queryCacheSize, getQueryCacheMaxRows()) : null;
+
+		mResolvedTables = new ConcurrentHashMap<String, ConcurrentHashMap<String, ResolvedUri>>();
+		final int resolvedUriCacheSize = getResolvedUriCacheSize();
+		mResolvedUris = new LinkedHashMap<String, ResolvedUri>(resolvedUriCacheSize, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ResolvedUri> eldest) {
+				return size() > resolvedUriCacheSize;
+			}
 
-		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
-		sUriMatcher.addURI(getAuthority(), "*/*/#", ROW_URI);
-		sUriMatcher.addURI(getAuthority(), "*/*", TABLE_URI);
+		};
 
 		mUIDs = new HashMap<String, String[]>();
+		mUIDAllocators = new HashMap<String, UIDAllocator>();
 		Database db = getDatabase();
+		Map<String, String[]> dependentViews = new HashMap<String, String[]>();
 		for (Table t : db.getTables()) {
+			// the views of a table already include views of views (see Database):
+			List<String> views = new ArrayList<String>();
+			for (View v : t.getReferencedBy()) {
+				views.add(v.getName());
+			}
+			dependentViews.put(t.getName(), views.toArray(new String[views.size()]));
+
 			List<String> uids = new ArrayList<String>();
 			for (Column c : t.getColumns()) {
 				if (c.isUID()) {
@@ -242,10 +723,78 @@ public abstract class DataProvider extends ContentProvider {
 			}
 			mUIDs.put(t.getName(), uids.toArray(new String[] {}));
 		}
+		mDependentViews = Collections.unmodifiableMap(dependentViews);
 
 		return true;
 	}
 
+	/**
+	 * Creates the metrics that receive the measurements of this provider's
+	 * operations. Subclasses may return for example an {@link InMemoryMetrics}
+	 * instance to inspect the performance of the provider.
+	 * 
+	 * @return {@link DataProviderMetrics#NONE} in the default implementation.
+	 */
+	protected DataProviderMetrics newMetrics() {
+		return DataProviderMetrics.NONE;
+	}
+
+	/**
+	 * @return the metrics created by {@link #newMetrics()}.
+	 */
+	public DataProviderMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Creates the inspector that collects the query plans of this provider's
+	 * queries, of the queries of merges and of the views. Determining a plan
+	 * and timing the queries costs time, so this is meant for development
+	 * builds only.
+	 * 
+	 * @return {@code null} in the default implementation.
+	 */
+	protected QueryPlanInspector newQueryPlanInspector() {
+		return null;
+	}
+
+	/**
+	 * @return the inspector created by {@link #newQueryPlanInspector()} or
+	 *         {@code null}.
+	 */
+	public QueryPlanInspector getQueryPlanInspector() {
+		return mQueryPlanInspector;
+	}
+
+	private long startTiming() {
+		return (mMetrics.isEnabled()) ? System.nanoTime() : 0L;
+	}
+
+	private void recordOperation(int operation, String table, int rows, long startTime) {
+		if (mMetrics.isEnabled()) {
+			mMetrics.onOperation(operation, table, rows, System.nanoTime() - startTime);
+		}
+	}
+
+	/**
+	 * Starts measuring the hold time of a transaction that is about to begin.
+	 * Nested transactions are not measured on their own, as they are part of
+	 * the enclosing one.
+	 */
+	private long startTransactionTiming(SQLiteDatabase db) {
+		if (mMetrics.isEnabled() && !db.inTransaction()) {
+			return System.nanoTime();
+		} else {
+			return -1L;
+		}
+	}
+
+	private void recordTransaction(Account account, long startTime) {
+		if (startTime >= 0L && mMetrics.isEnabled()) {
+			mMetrics.onTransaction(getDatabaseId(account), System.nanoTime() - startTime);
+		}
+	}
+
 	public void addChangesListener(ChangesListener listener) {
 		mChangesListeners.add(listener);
 	}
@@ -267,59 +816,200 @@ public abstract class DataProvider extends ContentProvider {
 	}
 
 	private SQLiteDatabase getReadableDatabase(Account account) {
-		return getDatabaseHelper(account).getReadableDatabase();
+		if (getDatabase().getWalOptions().isWriteAheadLogging()) {
+			// the read connections are pooled by the database object that
+			// has write-ahead logging enabled:
+			return getWritableDatabase(account);
+		} else {
+			return getDatabaseHelper(account).getReadableDatabase();
+		}
 	}
 
 	private SQLiteDatabase getWritableDatabase(Account account) {
-		return getDatabaseHelper(account).getWritableDatabase();
+		SQLiteDatabase db = getDatabaseHelper(account).getWritableDatabase();
+		synchronized (mConfiguredDatabases) {
+			String databaseId = getDatabaseId(account);
+			if (mConfiguredDatabases.get(databaseId) != db) {
+				configureDatabase(db, getDatabase().getWalOptions());
+				SyncState.createTable(db);
+				try {
+					// databases of previous versions may lack indexes:
+					getDatabase().createIndexes(db);
+				} catch (SQLException e) {
+					Debug.error("Error creating indexes: %s", e.getMessage());
+				}
+				if (mQueryPlanInspector != null) {
+					inspectViews(db);
+				}
+				mConfiguredDatabases.put(databaseId, db);
+			}
+		}
+		return db;
 	}
 
-	public List<Uri> getDependencies(Uri uri, ResolvedUri resolvedUri) {
-		Uri baseUri = getUri(resolvedUri.user, resolvedUri.table);
-		List<Uri> dep = mDependencies.get(baseUri);
-		if (dep != null) {
-			return dep;
-		} else {
-			List<Uri> result = new ArrayList<Uri>();
-			Table table = getDatabase().getTableOrThrow(resolvedUri.table);
-			for (View v : table.getReferencedBy()) {
-				baseUri = getUri(resolvedUri.user, v.getName());
-				result.add(baseUri);
+	private void inspectViews(SQLiteDatabase db) {
+		for (View v : getDatabase().getViews()) {
+			mQueryPlanInspector.inspect(db, QueryPlanInspector.SOURCE_VIEW, v.getSqlSelectStatement(), null);
+		}
+	}
+
+	private static boolean supportsWriteAheadLogging() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * Applies the journal settings of the {@link Database} to a newly opened
+	 * database. Subclasses may override this to apply further settings, but
+	 * should call through to the default implementation.
+	 * 
+	 * @param db
+	 *            the database that has just been opened.
+	 * @param options
+	 *            the settings returned by {@link Database#getWalOptions()}.
+	 */
+	protected void configureDatabase(SQLiteDatabase db, WalOptions options) {
+		if (options.isWriteAheadLogging() && supportsWriteAheadLogging()) {
+			if (db.inTransaction()) {
+				Debug.warning("Cannot enable write-ahead logging within a transaction");
+			} else if (!db.enableWriteAheadLogging()) {
+				Debug.warning("Write-ahead logging is not supported by %s", db.getPath());
 			}
-			mDependencies.put(uri, result);
-			return result;
+		}
+		// pragmas that return their new value cannot be run with execSQL:
+		if (options.getSynchronous() != WalOptions.DEFAULT) {
+			db.execSQL("PRAGMA synchronous = " + options.getSynchronous());
+		}
+		if (options.hasJournalSizeLimit()) {
+			DatabaseUtils.longForQuery(db, "PRAGMA journal_size_limit = " + options.getJournalSizeLimit(), null);
+		}
+		if (options.getAutoCheckpoint() != WalOptions.DEFAULT) {
+			DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + options.getAutoCheckpoint(), null);
 		}
 	}
 
-	private boolean getBooleanQueryParameter(Uri uri, String key, boolean defaultValue) {
-		String value = uri.getQueryParameter(key);
-		if (value == null) {
-			return defaultValue;
-		} else {
-			return !value.equals(QUERY_FALSE);
+	/**
+	 * Transfers the contents of the write-ahead log to the database file
+	 * without waiting for readers.
+	 */
+	private void checkpoint(SQLiteDatabase db) {
+		Cursor c = db.rawQuery("PRAGMA wal_checkpoint", null);
+		try {
+			c.moveToFirst();
+		} finally {
+			c.close();
 		}
 	}
 
-	private int getIntegerQueryParameter(Uri uri, String key, int defaultValue) {
-		String value = uri.getQueryParameter(key);
-		if (value == null) {
-			return defaultValue;
-		} else {
-			return Integer.parseInt(value);
+	/**
+	 * The maximum number of compiled statements that are cached per database.
+	 * Subclasses may override this to adjust the size of the cache to the
+	 * number of different tables and column sets they write to.
+	 * 
+	 * @return {@code 50} in the default implementation.
+	 */
+	protected int getStatementCacheSize() {
+		return 50;
+	}
+
+	/**
+	 * Gets the cache of compiled write statements for the given account's
+	 * database. A new cache is created whenever the database has been
+	 * reopened.
+	 */
+	StatementCache getStatementCache(Account account) {
+		SQLiteDatabase db = getWritableDatabase(account);
+		synchronized (mStatementCaches) {
+			String databaseId = getDatabaseId(account);
+			StatementCache cache = mStatementCaches.get(databaseId);
+			if (cache == null || cache.getDatabase() != db) {
+				if (cache != null) {
+					cache.clear();
+				}
+				cache = new StatementCache(db, getStatementCacheSize());
+				mStatementCaches.put(databaseId, cache);
+			}
+			return cache;
 		}
 	}
 
-	private long getLongQueryParameter(Uri uri, String key, long defaultValue) {
-		String value = uri.getQueryParameter(key);
-		if (value == null) {
-			return defaultValue;
-		} else {
-			return Integer.parseInt(value);
+	/**
+	 * Gets the uris of all views that depend on the table of the given uri
+	 * and thus need to be notified along with it.
+	 */
+	public List<Uri> getDependencies(Uri uri, ResolvedUri resolvedUri) {
+		return Collections.unmodifiableList(Arrays.asList(resolvedUri.dependencies));
+	}
+
+	/**
+	 * Creates a resolved uri from explicit values instead of parsing a uri.
+	 * 
+	 * @param table
+	 *            The table or view.
+	 * @param user
+	 *            The name of the account.
+	 * @param id
+	 *            The id of the row or {@code null}.
+	 * @param queryParams
+	 *            The parameters keyed by the {@code QUERY_KEY_*} constants or
+	 *            {@code null}. Parameters that are not contained have the same
+	 *            defaults as in a uri.
+	 */
+	protected ResolvedUri newResolvedUri(String table, String user, Long id, Bundle queryParams) {
+		return new ResolvedUri(resolve(user, table), id, queryParams);
+	}
+
+	protected ResolvedUri newResolvedUri(String table, String user, Bundle queryParams) {
+		return newResolvedUri(table, user, null, queryParams);
+	}
+
+	/**
+	 * Gets the shared instance for the given table of the given account
+	 * without any query parameters.
+	 */
+	ResolvedUri resolve(String user, String table) {
+		ConcurrentHashMap<String, ResolvedUri> tables = mResolvedTables.get(user);
+		if (tables == null) {
+			tables = new ConcurrentHashMap<String, ResolvedUri>();
+			ConcurrentHashMap<String, ResolvedUri> previous = mResolvedTables.putIfAbsent(user, tables);
+			if (previous != null) {
+				tables = previous;
+			}
+		}
+		ResolvedUri result = tables.get(table);
+		if (result == null) {
+			Account account;
+			ResolvedUri any = (tables.isEmpty()) ? null : tables.values().iterator().next();
+			if (any != null) {
+				// share one account instance between all tables:
+				account = any.user;
+			} else {
+				account = new Account(user, getAccountType());
+			}
+			result = new ResolvedUri(table, account, getUri(user, table), getDependencyUris(user, table));
+			ResolvedUri previous = tables.putIfAbsent(table, result);
+			if (previous != null) {
+				result = previous;
+			}
+		}
+		return result;
+	}
+
+	private Uri[] getDependencyUris(String user, String table) {
+		String[] views = mDependentViews.get(table);
+		if (views == null || views.length == 0) {
+			return NO_URIS;
+		}
+		Uri[] result = new Uri[views.length];
+		for (int i = 0; i < views.length; ++i) {
+			result[i] = resolve(user, views[i]).tableUri;
 		}
+		return result;
 	}
 
 	/**
-	 * Translates the given {@link Uri} to the corresponding table or view name.
+	 * Translates the given {@link Uri} to the corresponding table or view name
+	 * and parses its id and query parameters. The result is cached, so this is
+	 * cheap to call repeatedly with the same uri.
 	 * 
 	 * @param uri
 	 *            The content uri.
@@ -327,48 +1017,173 @@ public abstract class DataProvider extends ContentProvider {
 	 *         {@link Uri}.
 	 */
 	protected ResolvedUri resolveUri(Uri uri) {
-		// boolean recordChanges =
-		Bundle queryParams = new Bundle();
-		queryParams.putBoolean(QUERY_KEY_RECORD_CHANGES, getBooleanQueryParameter(uri, QUERY_KEY_RECORD_CHANGES, true));
-		queryParams.putString(QUERY_KEY_CHANGE_VALUE, uri.getQueryParameter(QUERY_KEY_CHANGE_VALUE));
-		queryParams.putBoolean(QUERY_KEY_NOTIFY, getBooleanQueryParameter(uri, QUERY_KEY_NOTIFY, true));
-		queryParams.putInt(QUERY_KEY_ACTION, getIntegerQueryParameter(uri, QUERY_KEY_ACTION, -1));
-		queryParams.putString(QUERY_KEY_GROUP_BY, uri.getQueryParameter(QUERY_KEY_GROUP_BY));
-		queryParams.putString(QUERY_KEY_ADDITIONAL_DATA, uri.getQueryParameter(QUERY_KEY_ADDITIONAL_DATA));
-		queryParams.putBoolean(QUERY_KEY_INSERT_OR_UPDATE,
-				getBooleanQueryParameter(uri, QUERY_KEY_INSERT_OR_UPDATE, false));
-
 		List<String> pathSegments = uri.getPathSegments();
-		if (sUriMatcher.match(uri) == TABLE_URI) {
-			return new ResolvedUri(pathSegments.get(1), pathSegments.get(0), queryParams);
-		} else {
-			long id = ContentUris.parseId(uri);
-			return new ResolvedUri(pathSegments.get(1), pathSegments.get(0), id, queryParams);
+		ResolvedUri base = resolve(pathSegments.get(0), pathSegments.get(1));
+		if (pathSegments.size() == 2 && uri.getQuery() == null) {
+			return base;
 		}
-	}
 
-	protected void notifyChange(Uri uri, ResolvedUri resolvedUri) {
-		if (resolvedUri.getBoolean(QUERY_KEY_NOTIFY) && !mAggregateNotifications) {
-			Debug.verbose("%s: Notifying for %s", Thread.currentThread().getName(), uri);
-			getContext().getContentResolver().notifyChange(uri, null, resolvedUri.getBoolean(QUERY_KEY_RECORD_CHANGES));
-			for (Uri depUri : getDependencies(uri, resolvedUri)) {
-				Debug.verbose("%s: Notifying for %s", Thread.currentThread().getName(), depUri);
-				getContext().getContentResolver().notifyChange(depUri, null,
-						resolvedUri.getBoolean(QUERY_KEY_RECORD_CHANGES));
+		String key = uri.toString();
+		ResolvedUri result;
+		synchronized (mResolvedUris) {
+			result = mResolvedUris.get(key);
+		}
+		if (result == null) {
+			Long id = null;
+			if (pathSegments.size() > 2) {
+				id = Long.parseLong(uri.getLastPathSegment());
+			}
+			if (uri.getQuery() == null) {
+				result = new ResolvedUri(base, id);
+			} else {
+				result = new ResolvedUri(base, id, uri);
+			}
+			synchronized (mResolvedUris) {
+				mResolvedUris.put(key, result);
 			}
-		} else if (mAggregateNotifications) {
-			mNotifications.add(new Notification(uri, resolvedUri));
 		}
+		return result;
 	}
 
-	@Override
-	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-		ResolvedUri resolvedUri = resolveUri(uri);
-		SQLiteDatabase db = getReadableDatabase(resolvedUri.user);
-		Cursor cursor = db.query(resolvedUri.table, projection, resolvedUri.extendSelection(selection), selectionArgs,
-				resolvedUri.getString(QUERY_KEY_GROUP_BY), null, sortOrder);
-
-		// if (resolvedUri.table.equals(Changes.TABLE_NAME)) {
+	private static Uri withoutQuery(Uri uri) {
+		if (uri.getQuery() == null) {
+			return uri;
+		} else {
+			return uri.buildUpon().clearQuery().build();
+		}
+	}
+
+	private void deliverNotification(Uri uri, boolean syncToNetwork) {
+		Debug.verbose("%s: Notifying for %s", Thread.currentThread().getName(), uri);
+		getContext().getContentResolver().notifyChange(uri, null, syncToNetwork);
+	}
+
+	protected void notifyChange(Uri uri, ResolvedUri resolvedUri) {
+		invalidateQueries(resolvedUri);
+		if (resolvedUri.notify) {
+			boolean syncToNetwork = resolvedUri.recordChanges;
+			NotificationSet notifications = mNotifications.get();
+			if (notifications != null) {
+				notifications.add(withoutQuery(uri), syncToNetwork);
+				for (Uri depUri : resolvedUri.dependencies) {
+					notifications.add(depUri, syncToNetwork);
+				}
+			} else {
+				deliverNotification(uri, syncToNetwork);
+				for (Uri depUri : resolvedUri.dependencies) {
+					deliverNotification(depUri, syncToNetwork);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts collecting the notifications of the calling thread instead of
+	 * delivering them immediately.
+	 */
+	private void beginNotifications() {
+		NotificationSet notifications = mNotifications.get();
+		if (notifications == null) {
+			notifications = new NotificationSet();
+			mNotifications.set(notifications);
+		}
+		notifications.begin();
+	}
+
+	private void setNotificationsSuccessful() {
+		NotificationSet notifications = mNotifications.get();
+		if (notifications != null) {
+			notifications.setSuccessful();
+		}
+	}
+
+	/**
+	 * Ends the current level of notification aggregation of the calling
+	 * thread. If it is the outermost level and all levels have been marked as
+	 * successful, each collected uri is notified once.
+	 */
+	private void endNotifications() {
+		NotificationSet notifications = mNotifications.get();
+		if (notifications != null && notifications.end()) {
+			mNotifications.remove();
+			if (!notifications.failed) {
+				for (Map.Entry<Uri, Boolean> n : notifications.uris.entrySet()) {
+					deliverNotification(n.getKey(), n.getValue());
+				}
+			}
+		}
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		long startTime = startTiming();
+		ResolvedUri resolvedUri = resolveUri(uri);
+		SQLiteDatabase db = getReadableDatabase(resolvedUri.user);
+
+		String key = null;
+		long generation = 0L;
+		// uncommitted data of the calling thread must not be cached:
+		if (mQueryCache != null && !getWritableDatabase(resolvedUri.user).inTransaction()) {
+			// the transaction may have been ended directly on the database:
+			onTransactionEnded(resolvedUri.user, getWritableDatabase(resolvedUri.user));
+			key = QueryCache.getKey(resolvedUri.user.name, resolvedUri.table, projection,
+					resolvedUri.extendSelection(selection), selectionArgs, sortOrder, resolvedUri.groupBy,
+					resolvedUri.limit);
+			Cursor cached = mQueryCache.get(key);
+			if (cached != null) {
+				cached.setNotificationUri(getContext().getContentResolver(), uri);
+				recordOperation(DataProviderMetrics.OPERATION_QUERY, resolvedUri.table, cached.getCount(), startTime);
+				return cached;
+			}
+			generation = mQueryCache.getGeneration(resolvedUri.user.name, resolvedUri.table);
+		}
+
+		// materialized views are only refreshed by writers, until then their
+		// rows are computed:
+		String table = resolvedUri.table;
+		View view = getDatabase().getView(table);
+		if (view != null && view.isMaterialized()) {
+			table = getDatabase().getReadableName(db, view);
+		}
+
+		QueryPlanInspector.QueryPlan plan = null;
+		long queryStartTime = 0L;
+		if (mQueryPlanInspector != null) {
+			plan = mQueryPlanInspector.inspect(db, QueryPlanInspector.SOURCE_QUERY, table, projection,
+					resolvedUri.extendSelection(selection), selectionArgs, resolvedUri.groupBy, sortOrder,
+					resolvedUri.limit);
+			queryStartTime = System.nanoTime();
+		}
+
+		// a query that may be cached is first executed with a limit just
+		// above the cacheable size, so a large result is not read in full:
+		String limit = resolvedUri.limit;
+		if (key != null) {
+			limit = mQueryCache.getProbeLimit(key, resolvedUri.limit);
+			if (limit == null) {
+				key = null;
+				limit = resolvedUri.limit;
+			}
+		}
+		Cursor cursor = db.query(table, projection, resolvedUri.extendSelection(selection), selectionArgs,
+				resolvedUri.groupBy, null, sortOrder, limit);
+		if (plan != null) {
+			// the query is only executed when the cursor is filled:
+			cursor.getCount();
+			mQueryPlanInspector.record(plan, System.nanoTime() - queryStartTime);
+		}
+		if (key != null) {
+			if (cursor.getCount() > mQueryCache.getMaxRows()) {
+				mQueryCache.putTooLarge(key, resolvedUri.user.name, resolvedUri.table, generation);
+				cursor.close();
+				cursor = db.query(table, projection, resolvedUri.extendSelection(selection), selectionArgs,
+						resolvedUri.groupBy, null, sortOrder, resolvedUri.limit);
+			} else {
+				cursor = mQueryCache.put(key, resolvedUri.user.name, resolvedUri.table, generation, cursor);
+			}
+		}
+
+		// if (resolvedUri.table.equals(Changes.TABLE_NAME)) {
 		// Debug.verbose("%s - Query[%d]: %s, %s, %s, %s, %s",
 		// Thread.currentThread().getName(), cursor.getCount(),
 		// uri, Arrays.toString(projection), selection,
@@ -390,6 +1205,8 @@ public abstract class DataProvider extends ContentProvider {
 
 		cursor.setNotificationUri(getContext().getContentResolver(), uri);
 
+		// the rows are not known until the cursor has been filled:
+		recordOperation(DataProviderMetrics.OPERATION_QUERY, resolvedUri.table, -1, startTime);
 		return cursor;
 	}
 
@@ -493,9 +1310,9 @@ public abstract class DataProvider extends ContentProvider {
 	protected void insertSingleChange(SQLiteDatabase db, int action, long id, ResolvedUri resolvedUri,
 			ContentValues values) {
 		ContentValues changes = getChanges(db, action, resolvedUri.table, id, values,
-				resolvedUri.getString(QUERY_KEY_CHANGE_VALUE), resolvedUri.getString(QUERY_KEY_ADDITIONAL_DATA));
+				resolvedUri.changeValue, resolvedUri.additionalData);
 		if (changes != null) {
-			db.insert(Changes.TABLE_NAME, null, changes);
+			getStatementCache(resolvedUri.user).insert(Changes.TABLE_NAME, changes);
 			for (ChangesListener l : mChangesListeners) {
 				l.onInsertChange(changes);
 			}
@@ -504,10 +1321,10 @@ public abstract class DataProvider extends ContentProvider {
 
 	protected void insertChanges(int action, SQLiteDatabase db, Uri uri, ResolvedUri resolvedUri, String selection,
 			String[] selectionArgs, ContentValues values) {
-		if (resolvedUri.queryParams.getBoolean(QUERY_KEY_RECORD_CHANGES)
+		if (resolvedUri.recordChanges
 				&& !getDatabase().getTable(resolvedUri.table).isLocal()) {
 
-			int customAction = resolvedUri.getInt(QUERY_KEY_ACTION);
+			int customAction = resolvedUri.action;
 			if (customAction >= 0) {
 				// overwrite default action:
 				action = customAction;
@@ -517,6 +1334,8 @@ public abstract class DataProvider extends ContentProvider {
 				insertSingleChange(db, action, resolvedUri.id, resolvedUri, values);
 			} else if (action == Changes.ACTION_REMOVE) {
 				insertRemoveChange(action, db, resolvedUri, selection, selectionArgs);
+			} else if (isSetBasedChangeRecording(resolvedUri.table)) {
+				insertChangesForSelection(db, action, resolvedUri, selection, selectionArgs, values);
 			} else {
 				Cursor cursor = query(uri, new String[] { getChangeIdColumn(resolvedUri.table) }, selection,
 						selectionArgs, null);
@@ -534,6 +1353,117 @@ public abstract class DataProvider extends ContentProvider {
 		}
 	}
 
+	/**
+	 * Defines whether changes of a statement that affects multiple rows of the
+	 * given table are recorded with a single {@code INSERT ... SELECT}
+	 * statement (see
+	 * {@link #insertChangesForSelection(SQLiteDatabase, int, ResolvedUri, String, String[], ContentValues)}
+	 * ) instead of calling
+	 * {@link #insertSingleChange(SQLiteDatabase, int, long, ResolvedUri, ContentValues)}
+	 * for each row. Subclasses may return {@code true} for tables whose
+	 * change values do not depend on the individual row, i.e. where neither
+	 * {@link #insertSingleChange} nor {@code getChanges} are overridden to
+	 * compute per-row values.
+	 * 
+	 * @param table
+	 *            the table
+	 * @return {@code false} in the default implementation.
+	 */
+	protected boolean isSetBasedChangeRecording(String table) {
+		return false;
+	}
+
+	/**
+	 * Records a change for every row of the given selection with one
+	 * {@code INSERT ... SELECT} statement. The values that are common to all
+	 * changes, in particular the rendered JSON, are computed only once by
+	 * {@link #getChanges(SQLiteDatabase, int, String, long, ContentValues, String, String)}
+	 * . Only the native id and the object id are taken from the selected rows.
+	 * Registered {@link BatchChangesListener}s are informed with a single call.
+	 */
+	protected void insertChangesForSelection(SQLiteDatabase db, int action, ResolvedUri resolvedUri,
+			String selection, String[] selectionArgs, ContentValues values) {
+		String table = resolvedUri.table;
+		ContentValues template = getChanges(db, action, table, 0L, values,
+				resolvedUri.changeValue, resolvedUri.additionalData);
+		if (template == null) {
+			return;
+		}
+
+		String changeIdColumn = getChangeIdColumn(table);
+		boolean constantId = !changeIdColumn.equals(BaseColumns._ID) && values != null
+				&& values.containsKey(changeIdColumn);
+		String changeIdExpression = (constantId) ? "?" : changeIdColumn;
+
+		StringBuilder sql = new StringBuilder();
+		StringBuilder select = new StringBuilder();
+		List<Object> bindArgs = new ArrayList<Object>();
+		sql.append("INSERT INTO ").append(Changes.TABLE_NAME).append(" (");
+		for (String column : template.keySet()) {
+			if (select.length() > 0) {
+				sql.append(", ");
+				select.append(", ");
+			}
+			sql.append(column);
+			if (column.equals(Changes.COLUMN_NATIVE_ID)) {
+				select.append(BaseColumns._ID);
+			} else if (column.equals(Changes.COLUMN_ID)) {
+				select.append(changeIdExpression);
+				if (constantId) {
+					bindArgs.add(template.get(column));
+				}
+			} else {
+				select.append('?');
+				bindArgs.add(template.get(column));
+			}
+		}
+		sql.append(") SELECT ").append(select).append(" FROM ").append(table);
+		if (!TextUtils.isEmpty(selection)) {
+			sql.append(" WHERE ").append(selection);
+		}
+		if (selectionArgs != null) {
+			bindArgs.addAll(Arrays.asList(selectionArgs));
+		}
+
+		long[] ids = null;
+		if (!mChangesListeners.isEmpty()) {
+			ids = queryChangeIds(db, table, changeIdExpression, constantId ? template.getAsLong(Changes.COLUMN_ID)
+					: null, selection, selectionArgs);
+		}
+
+		db.execSQL(sql.toString(), bindArgs.toArray());
+
+		if (ids != null) {
+			for (ChangesListener l : mChangesListeners) {
+				if (l instanceof BatchChangesListener) {
+					((BatchChangesListener) l).onInsertChanges(template, ids);
+				} else {
+					for (long id : ids) {
+						ContentValues change = new ContentValues(template);
+						change.put(Changes.COLUMN_ID, id);
+						l.onInsertChange(change);
+					}
+				}
+			}
+		}
+	}
+
+	private long[] queryChangeIds(SQLiteDatabase db, String table, String changeIdExpression, Long constantId,
+			String selection, String[] selectionArgs) {
+		Cursor cursor = db.query(table, new String[] { (constantId != null) ? BaseColumns._ID : changeIdExpression },
+				selection, selectionArgs, null, null, null);
+		try {
+			long[] ids = new long[cursor.getCount()];
+			int i = 0;
+			while (cursor.moveToNext()) {
+				ids[i++] = (constantId != null) ? constantId : cursor.getLong(0);
+			}
+			return ids;
+		} finally {
+			cursor.close();
+		}
+	}
+
 	private void insertRemoveChange(int action, SQLiteDatabase db, ResolvedUri resolvedUri, String selection, String[] selectionArgs) {
 		if (hasMultipleConditions(selectionArgs)) {
 			// TODO There's no case of user for that at this point in time
@@ -595,8 +1525,37 @@ public abstract class DataProvider extends ContentProvider {
 	}
 
 	/**
-	 * Generates a new unique id value for the given column.
+	 * The number of UIDs that are reserved at once for a table-column pair.
+	 * Larger blocks mean fewer writes to the database, but more values that
+	 * are skipped when the process is restarted.
 	 * 
+	 * @return {@code 64} in the default implementation.
+	 */
+	protected int getUIDBlockSize() {
+		return 64;
+	}
+
+	private UIDAllocator getUIDAllocator(Account account) {
+		synchronized (mUIDAllocators) {
+			String databaseId = getDatabaseId(account);
+			UIDAllocator allocator = mUIDAllocators.get(databaseId);
+			if (allocator == null) {
+				allocator = new UIDAllocator(this, getUIDBlockSize());
+				mUIDAllocators.put(databaseId, allocator);
+			}
+			return allocator;
+		}
+	}
+
+	/**
+	 * Generates a new unique id value for the given column. Values come from
+	 * a block that is stored in the database of the given account. When the
+	 * block is used up while the calling thread holds a transaction, only a
+	 * single value is reserved as part of that transaction (see
+	 * {@link UIDAllocator#next(SQLiteDatabase, String, String)}).
+	 * 
+	 * @param account
+	 *            The account whose database contains the table.
 	 * @param table
 	 *            The table where the column resides in.
 	 * @param column
@@ -604,6 +1563,26 @@ public abstract class DataProvider extends ContentProvider {
 	 * @return A {@link long} value unique for the given table-column
 	 *         combination.
 	 */
+	public long newUID(Account account, String table, String column) {
+		return getUIDAllocator(account).next(getWritableDatabase(account), table, column);
+	}
+
+	/**
+	 * Generates a new unique id value for the given column from a counter in
+	 * the shared preferences. The counter is not coordinated with the values
+	 * of {@link #newUID(Account, String, String)}, so only one of both
+	 * methods must be used for a column.
+	 * 
+	 * @param table
+	 *            The table where the column resides in.
+	 * @param column
+	 *            The column for which to create a uid.
+	 * @return A {@link long} value unique for the given table-column
+	 *         combination.
+	 * @deprecated Use {@link #newUID(Account, String, String)}, which does
+	 *             not write the preferences for every value.
+	 */
+	@Deprecated
 	public synchronized long newUID(String table, String column) {
 		SharedPreferences pref = getContext().getSharedPreferences("uid", Context.MODE_PRIVATE);
 		SharedPreferences.Editor editor = pref.edit();
@@ -623,46 +1602,60 @@ public abstract class DataProvider extends ContentProvider {
 	 * negative values, whereas manual ids only set positive values. It is up to
 	 * the application programmer to ensure this contract though.
 	 * 
+	 * @param account
+	 *            The account whose database contains the table.
 	 * @param table
 	 *            The table where the values are to be inserted.
 	 * @param values
 	 *            The content values.
 	 */
-	private void fillUIDs(String table, ContentValues values) {
+	private void fillUIDs(Account account, String table, ContentValues values) {
 		String[] uids = mUIDs.get(table);
-		for (String uidColumn : uids) {
-			if (!values.containsKey(uidColumn)) {
-				values.put(uidColumn, newUID(table, uidColumn));
+		if (uids.length > 0) {
+			SQLiteDatabase db = getWritableDatabase(account);
+			UIDAllocator allocator = getUIDAllocator(account);
+			for (String uidColumn : uids) {
+				if (!values.containsKey(uidColumn)) {
+					values.put(uidColumn, allocator.next(db, table, uidColumn));
+				}
 			}
 		}
 	}
 
+	private void insertChange(StatementCache statements, ContentValues change) {
+		statements.insert(Changes.TABLE_NAME, change);
+		for (ChangesListener l : mChangesListeners) {
+			l.onInsertChange(change);
+		}
+	}
+
 	@Override
 	public Uri insert(Uri uri, ContentValues values) {
-		Debug.info("%s - Inserting %s with %s", Thread.currentThread().getName(), uri, values);
+		long startTime = startTiming();
 		ResolvedUri resolvedUri = resolveUri(uri);
-		Log.i("T - " + Thread.currentThread().getName(), ">> INSERT: " + resolvedUri.table);
 
 		if (resolvedUri.id != null) {
 			throw new IllegalArgumentException("Invalid content uri for insert: " + uri);
 		}
 		long rowId = 0;
 
-		fillUIDs(resolvedUri.table, values);
-
 		// if (values.containsKey(BaseColumns._ID)) {
 		// throw new RuntimeException();
 		// }
 
 		SQLiteDatabase db = getWritableDatabase(resolvedUri.user);
+		StatementCache statements = getStatementCache(resolvedUri.user);
+		// reserve uids before the transaction, see UIDAllocator:
+		fillUIDs(resolvedUri.user, resolvedUri.table, values);
+		long transactionStartTime = startTransactionTiming(db);
 		db.beginTransaction();
 		try {
-			if (resolvedUri.getBoolean(QUERY_KEY_INSERT_OR_UPDATE)) {
-				rowId = db.insertWithOnConflict(resolvedUri.table, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+			if (resolvedUri.insertOrUpdate) {
+				rowId = statements.insertWithOnConflict(resolvedUri.table, values, SQLiteDatabase.CONFLICT_REPLACE);
 			} else {
-				rowId = db.insert(resolvedUri.table, null, values);
+				rowId = statements.insert(resolvedUri.table, values);
 			}
-			resolvedUri.setId(rowId);
+			resolvedUri = resolvedUri.withId(rowId);
 			insertChanges(Changes.ACTION_CREATE, db, uri, resolvedUri, null, null, values);
 			if (rowId >= 0) {
 				notifyChange(uri, resolvedUri);
@@ -670,143 +1663,521 @@ public abstract class DataProvider extends ContentProvider {
 			db.setTransactionSuccessful();
 		} finally {
 			db.endTransaction();
+			recordTransaction(resolvedUri.user, transactionStartTime);
+			onWriteEnded(resolvedUri.user, db);
 		}
-		Debug.info("%s - Inserted rowId: %d", Thread.currentThread().getName(), rowId);
-		Log.i("T - " + Thread.currentThread().getName(), "<< INSERT: " + resolvedUri.table);
+		recordOperation(DataProviderMetrics.OPERATION_INSERT, resolvedUri.table, (rowId >= 0) ? 1 : 0, startTime);
 		return ContentUris.withAppendedId(uri, rowId);
 	}
 
+	/**
+	 * Inserts all rows within a single transaction. In contrast to the default
+	 * implementation of {@link ContentProvider}, the uri is resolved only once
+	 * and every row is bound to the same cached compiled statement, as is
+	 * every change record. Observers are notified only once, within the
+	 * transaction like {@link #insert(Uri, ContentValues)}.
+	 */
 	@Override
-	public int delete(Uri uri, String selection, String[] selectionArgs) {
-		Debug.info("%s - Deleting %s (%s, %s)", Thread.currentThread().getName(), uri, selection,
-				Arrays.toString(selectionArgs));
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		long startTime = startTiming();
+		ResolvedUri resolvedUri = resolveUri(uri);
+
+		if (resolvedUri.id != null) {
+			throw new IllegalArgumentException("Invalid content uri for bulk insert: " + uri);
+		}
 
+		boolean replace = resolvedUri.insertOrUpdate;
+		boolean recordChanges = resolvedUri.recordChanges
+				&& !getDatabase().getTable(resolvedUri.table).isLocal();
+		int action = resolvedUri.action;
+		if (action < 0) {
+			action = Changes.ACTION_CREATE;
+		}
+		String customChangeValue = resolvedUri.changeValue;
+		String additionalData = resolvedUri.additionalData;
+
+		SQLiteDatabase db = getWritableDatabase(resolvedUri.user);
+		StatementCache statements = getStatementCache(resolvedUri.user);
+		int insertedRows = 0;
+		for (ContentValues row : values) {
+			fillUIDs(resolvedUri.user, resolvedUri.table, row);
+		}
+		long transactionStartTime = startTransactionTiming(db);
+		db.beginTransaction();
+		try {
+			for (ContentValues row : values) {
+				long rowId;
+				if (replace) {
+					rowId = statements.insertWithOnConflict(resolvedUri.table, row, SQLiteDatabase.CONFLICT_REPLACE);
+				} else {
+					rowId = statements.insert(resolvedUri.table, row);
+				}
+				if (rowId >= 0) {
+					++insertedRows;
+					if (recordChanges) {
+						ContentValues change = getChanges(db, action, resolvedUri.table, rowId, row, customChangeValue,
+								additionalData);
+						if (change != null) {
+							insertChange(statements, change);
+						}
+					}
+				}
+			}
+			if (insertedRows > 0) {
+				notifyChange(uri, resolvedUri);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			recordTransaction(resolvedUri.user, transactionStartTime);
+			onWriteEnded(resolvedUri.user, db);
+		}
+		recordOperation(DataProviderMetrics.OPERATION_BULK_INSERT, resolvedUri.table, insertedRows, startTime);
+		return insertedRows;
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		long startTime = startTiming();
 		ResolvedUri resolvedUri = resolveUri(uri);
-		Log.i("T - " + Thread.currentThread().getName(), ">> DELETE: " + resolvedUri.table);
 		SQLiteDatabase db = getWritableDatabase(resolvedUri.user);
 		int deletedRows = 0;
+		long transactionStartTime = startTransactionTiming(db);
 		db.beginTransaction();
 		try {
 			insertChanges(Changes.ACTION_REMOVE, db, uri, resolvedUri, selection, selectionArgs, null);
-			deletedRows = db.delete(resolvedUri.table, resolvedUri.extendSelection(selection), selectionArgs);
+			deletedRows = getStatementCache(resolvedUri.user).delete(resolvedUri.table,
+					resolvedUri.extendSelection(selection), selectionArgs);
 			if (deletedRows > 0) {
 				notifyChange(uri, resolvedUri);
 			}
 			db.setTransactionSuccessful();
 		} finally {
 			db.endTransaction();
+			recordTransaction(resolvedUri.user, transactionStartTime);
+			onWriteEnded(resolvedUri.user, db);
 		}
-		Debug.info("%s - Deleted %d rows.", Thread.currentThread().getName(), deletedRows);
-		Log.i("T - " + Thread.currentThread().getName(), "<< DELETE: " + resolvedUri.table);
+		recordOperation(DataProviderMetrics.OPERATION_DELETE, resolvedUri.table, deletedRows, startTime);
 		return deletedRows;
 	}
 
 	@Override
 	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-		Debug.info("%s - Updating %s (%s, %s) with %s", Thread.currentThread().getName(), uri, selection,
-				Arrays.toString(selectionArgs), values);
+		long startTime = startTiming();
 		ResolvedUri resolvedUri = resolveUri(uri);
-		Log.i("T - " + Thread.currentThread().getName(), ">> UPDATE: " + resolvedUri.table);
 		SQLiteDatabase db = getWritableDatabase(resolvedUri.user);
 		int updatedRows = 0;
+		long transactionStartTime = startTransactionTiming(db);
 		db.beginTransaction();
 		try {
 			insertChanges(Changes.ACTION_UPDATE, db, uri, resolvedUri, selection, selectionArgs, values);
-			updatedRows = db.update(resolvedUri.table, values, resolvedUri.extendSelection(selection), selectionArgs);
+			Table table = getDatabase().getTable(resolvedUri.table);
+			if (table != null && table.hasContentHash() && !values.containsKey(Table.COLUMN_SYNC_HASH)) {
+				// the row differs from the server now, even if its next
+				// version from the server has the last hash:
+				values = new ContentValues(values);
+				values.putNull(Table.COLUMN_SYNC_HASH);
+			}
+			updatedRows = getStatementCache(resolvedUri.user).update(resolvedUri.table, values,
+					resolvedUri.extendSelection(selection), selectionArgs);
 			if (updatedRows > 0) {
 				notifyChange(uri, resolvedUri);
 			}
 			db.setTransactionSuccessful();
 		} finally {
 			db.endTransaction();
+			recordTransaction(resolvedUri.user, transactionStartTime);
+			onWriteEnded(resolvedUri.user, db);
 		}
-		Debug.info("%s - Updated %d rows", Thread.currentThread().getName(), updatedRows);
-		Log.i("T - " + Thread.currentThread().getName(), "<< UPDATE: " + resolvedUri.table);
+		recordOperation(DataProviderMetrics.OPERATION_UPDATE, resolvedUri.table, updatedRows, startTime);
 		return updatedRows;
 	}
 
+	/**
+	 * The number of operations of a batch that are committed together by
+	 * {@link #applyBatch(Account, ArrayList)}. Between two chunks, other
+	 * connections that are waiting for the database get the chance to run.
+	 * Subclasses may override this to trade throughput against latency of
+	 * concurrent queries.
+	 * 
+	 * @return {@code 100} in the default implementation. A value of {@code 0}
+	 *         or less applies the whole batch in a single transaction.
+	 */
+	protected int getBatchChunkSize() {
+		return 100;
+	}
+
+	/**
+	 * Gets the account all operations refer to.
+	 * 
+	 * @return the account or {@code null} if the operations refer to
+	 *         different databases.
+	 */
+	private Account getBatchAccount(List<ContentProviderOperation> operations) {
+		Account account = null;
+		String databaseId = null;
+		for (ContentProviderOperation o : operations) {
+			Account a = resolveUri(o.getUri()).user;
+			if (account == null) {
+				account = a;
+				databaseId = getDatabaseId(a);
+			} else if (!databaseId.equals(getDatabaseId(a))) {
+				return null;
+			}
+		}
+		return account;
+	}
+
+	/**
+	 * Applies the operations within transactions of
+	 * {@link #getBatchChunkSize()} operations each (see
+	 * {@link #applyBatch(Account, ArrayList)}). If the operations refer to
+	 * different databases, each operation is committed on its own.
+	 */
 	@Override
 	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
 			throws OperationApplicationException {
-		mAggregateNotifications = true;
+		Account account = getBatchAccount(operations);
+		if (account != null) {
+			return applyBatch(account, operations);
+		}
+
+		long startTime = startTiming();
 		ContentProviderResult[] result = new ContentProviderResult[operations.size()];
 		int i = 0;
-		for (ContentProviderOperation o : operations) {
-			// Set<String> queryParams = o.getUri().getQueryParameterNames();
-			/*
-			 * TODO; set the no-notification flag. Then aggregate notifications
-			 * here and don't use a member because of thread safety.
-			 */
-			result[i] = o.apply(this, result, i++);
-		}
-		mAggregateNotifications = false;
-		for (Notification n : mNotifications) {
-			notifyChange(n.uri, n.resolvedUri);
-		}
-		mNotifications.clear();
+		beginNotifications();
+		try {
+			for (ContentProviderOperation o : operations) {
+				result[i] = o.apply(this, result, i++);
+			}
+		} finally {
+			// each operation has been committed on its own:
+			setNotificationsSuccessful();
+			endNotifications();
+		}
+		recordOperation(DataProviderMetrics.OPERATION_APPLY_BATCH, null, operations.size(), startTime);
 		return result;
 	}
 
+	/**
+	 * Commits the current transaction and begins a new one. If other
+	 * connections are waiting for the database, they get the chance to run
+	 * before.
+	 */
+	private void commitChunk(Account account, SQLiteDatabase db) {
+		if (!db.yieldIfContendedSafely()) {
+			db.setTransactionSuccessful();
+			db.endTransaction();
+			db.beginTransaction();
+		}
+		invalidateQueries(account);
+	}
+
+	/**
+	 * Applies all operations on the account's database. The operations are
+	 * committed in chunks of {@link #getBatchChunkSize()} operations and
+	 * other connections may run between two chunks. If an operation fails,
+	 * only the current chunk is rolled back. Back references are resolved
+	 * across chunks as all results are kept. If the calling thread already
+	 * holds a transaction, all operations become part of it.
+	 * 
+	 * Notifications are collected and delivered once after the last commit.
+	 */
 	public ContentProviderResult[] applyBatch(Account account, ArrayList<ContentProviderOperation> operations)
 			throws OperationApplicationException {
+		long startTime = startTiming();
 		SQLiteDatabase db = getWritableDatabase(account);
 		ContentProviderResult[] result = new ContentProviderResult[operations.size()];
-		int i = 0;
+		// nested transactions cannot be committed in between:
+		int chunkSize = (db.inTransaction()) ? 0 : getBatchChunkSize();
+		boolean committed = false;
+		beginNotifications();
+		long transactionStartTime = startTransactionTiming(db);
 		db.beginTransaction();
 		try {
-
-			for (ContentProviderOperation op : operations) {
-				op.apply(this, result, i++);
+			for (int i = 0; i < operations.size(); ++i) {
+				ContentProviderOperation op = operations.get(i);
+				if (chunkSize > 0 && i > 0 && (i % chunkSize == 0 || op.isYieldAllowed())) {
+					commitChunk(account, db);
+					recordTransaction(account, transactionStartTime);
+					transactionStartTime = startTiming();
+					committed = true;
+				}
+				result[i] = op.apply(this, result, i);
 			}
 
 			db.setTransactionSuccessful();
+			committed = true;
+			recordOperation(DataProviderMetrics.OPERATION_APPLY_BATCH, null, operations.size(), startTime);
 			return result;
 		} finally {
-			db.endTransaction();
+			try {
+				db.endTransaction();
+				recordTransaction(account, transactionStartTime);
+				onWriteEnded(account, db);
+				if (committed) {
+					setNotificationsSuccessful();
+				}
+			} finally {
+				// a failed commit must not leave the notifications open:
+				endNotifications();
+			}
 		}
 	}
 
+	/**
+	 * Begins a transaction on the account's database. Notifications are
+	 * collected until the transaction ends and are delivered only if it has
+	 * been committed.
+	 */
 	public void beginTransaction(Account account) {
 		Debug.info("BEGIN TRANSACTION: %s", Thread.currentThread().getName());
-		getWritableDatabase(account).beginTransaction();
-		synchronized (mAggregateNotifications) {
-			mAggregateNotifications = true;
-		}
+		SQLiteDatabase db = getWritableDatabase(account);
+		onTransactionEnded(account, db);
+		db.beginTransaction();
+		beginNotifications();
 	}
 
 	public void setTransactionSuccessful(Account account) {
 		Debug.info("SET TRANSACTION SUCCESSFUL: %s", Thread.currentThread().getName());
-		synchronized (mAggregateNotifications) {
-			mAggregateNotifications = false;
-			for (Notification n : mNotifications) {
-				notifyChange(n.uri, n.resolvedUri);
-			}
-			mNotifications.clear();
-		}
 		getWritableDatabase(account).setTransactionSuccessful();
+		setNotificationsSuccessful();
 	}
 
 	public void endTransaction(Account account) {
 		Debug.info("END TRANSACTION: %s", Thread.currentThread().getName());
-		synchronized (mAggregateNotifications) {
-			mAggregateNotifications = false;
+		SQLiteDatabase db = getWritableDatabase(account);
+		try {
+			db.endTransaction();
+			onWriteEnded(account, db);
+		} finally {
+			endNotifications();
 		}
-		getWritableDatabase(account).endTransaction();
 	}
 
 	public void beginTransaction(Account account, SQLiteTransactionListener listener) {
 		Debug.info("BEGIN TRANSACTION: %s", Thread.currentThread().getName());
 		if (listener != null) {
-			getWritableDatabase(account).beginTransactionWithListener(listener);
+			SQLiteDatabase db = getWritableDatabase(account);
+			onTransactionEnded(account, db);
+			db.beginTransactionWithListener(listener);
+			beginNotifications();
 		} else {
 			beginTransaction(account);
 		}
 	}
 
+	/**
+	 * Defines whether data from the server is merged into the given table
+	 * with set-based statements over a temporary table instead of one
+	 * statement per row. Subclasses may override this to compare both
+	 * strategies on the same table.
+	 * 
+	 * @param table
+	 *            the table
+	 * @return {@link Table#isSetBasedMerge()} in the default implementation.
+	 */
+	protected boolean isSetBasedMerge(Table table) {
+		return table.isSetBasedMerge();
+	}
+
+	/**
+	 * The number of bytes the incoming entries of a single update from the
+	 * server may occupy on the heap. Beyond that, they are moved to temporary
+	 * files in the cache directory and merged from there.
+	 * 
+	 * @return {@code 4 MB} in the default implementation.
+	 */
+	protected long getSyncMemoryBudget() {
+		return 4L * 1024L * 1024L;
+	}
+
+	/**
+	 * Defines whether the given filter is updated with delta updates if the
+	 * adapter returned by {@link #newDataAdapter()} is a
+	 * {@link DeltaDataAdapter}.
+	 * 
+	 * @param filter
+	 *            the filter
+	 * @return {@code true} in the default implementation.
+	 */
+	protected boolean isDeltaSync(CollectionFilter filter) {
+		return true;
+	}
+
+	/**
+	 * Defines whether the given filter is updated in pipelined mode: the
+	 * entries of the main table are written by a separate thread while the
+	 * download continues, so network and database time overlap. Delta
+	 * updates (see {@link #isDeltaSync(CollectionFilter)}) are never
+	 * pipelined. Neither are updates while the calling thread holds a
+	 * transaction or while another pipelined update of the same database is
+	 * running: those are merged sequentially.
+	 * 
+	 * @param filter
+	 *            the filter
+	 * @return {@code false} in the default implementation.
+	 */
+	protected boolean isPipelinedSync(CollectionFilter filter) {
+		return false;
+	}
+
+	/**
+	 * The number of entries that are passed to the writer thread at once in
+	 * pipelined mode (see {@link #isPipelinedSync(CollectionFilter)}).
+	 * 
+	 * @return {@code 256} in the default implementation.
+	 */
+	protected int getPipelineChunkSize() {
+		return 256;
+	}
+
+	/**
+	 * The number of chunks that may wait for the writer thread in pipelined
+	 * mode before the download is blocked.
+	 * 
+	 * @return {@code 8} in the default implementation.
+	 */
+	protected int getPipelineCapacity() {
+		return 8;
+	}
+
+	/**
+	 * Defines whether the merge of the given filter is committed in chunks
+	 * (see {@link #getMergeChunkOperations()} and
+	 * {@link #getMergeChunkMillis()}). This keeps other writers, and readers
+	 * without write-ahead logging, from being locked out during a large
+	 * merge, but an interrupted merge leaves the data partially updated until
+	 * the next update. Chunked merges report their progress to the
+	 * {@link ProgressListener}. Pipelined updates are never chunked.
+	 * 
+	 * @param filter
+	 *            the filter
+	 * @return {@code false} in the default implementation.
+	 */
+	protected boolean isChunkedMerge(CollectionFilter filter) {
+		return false;
+	}
+
+	/**
+	 * The number of inserts, updates and deletes after which a chunked merge
+	 * is committed.
+	 * 
+	 * @return {@code 1000} in the default implementation.
+	 */
+	protected int getMergeChunkOperations() {
+		return 1000;
+	}
+
+	/**
+	 * The number of milliseconds after which a chunked merge is committed.
+	 * 
+	 * @return {@code 250} in the default implementation.
+	 */
+	protected long getMergeChunkMillis() {
+		return 250L;
+	}
+
+	/**
+	 * @return the thread that merges pipelined updates into the given
+	 *         database. Only one pipelined update per database runs at a time
+	 *         (see {@link #mBusySyncWriters}), so updates of other databases
+	 *         are never queued behind it.
+	 */
+	private synchronized ExecutorService getSyncWriter(String databaseId) {
+		ExecutorService writer = mSyncWriters.get(databaseId);
+		if (writer == null) {
+			writer = Executors.newSingleThreadExecutor();
+			mSyncWriters.put(databaseId, writer);
+		}
+		return writer;
+	}
+
+	/**
+	 * @return the threads that download the filters of
+	 *         {@link #updateFromServer(Account, CollectionFilter[], ProgressListener, DatabaseUpdateListener)}
+	 *         . Their number is {@link #getSyncConcurrency()}, shared by all
+	 *         concurrent updates.
+	 */
+	private synchronized ExecutorService getSyncDownloaders() {
+		if (mSyncDownloaders == null) {
+			mSyncDownloaders = Executors.newFixedThreadPool(Math.max(1, getSyncConcurrency()));
+		}
+		return mSyncDownloaders;
+	}
+
+	/**
+	 * Stops the threads that download and merge updates. Updates that are
+	 * still running are completed first.
+	 */
+	@Override
+	public void shutdown() {
+		synchronized (this) {
+			for (ExecutorService writer : mSyncWriters.values()) {
+				writer.shutdown();
+			}
+			mSyncWriters.clear();
+			if (mSyncDownloaders != null) {
+				mSyncDownloaders.shutdown();
+				mSyncDownloaders = null;
+			}
+		}
+		super.shutdown();
+	}
+
+	/**
+	 * @return the sync token stored for the given filter or {@code null} if
+	 *         there is none or the filter is not updated with delta updates.
+	 */
+	private String getSyncToken(SQLiteDatabase db, CollectionFilter filter, UpdateOperation uop) {
+		if (uop.adapter instanceof DeltaDataAdapter && isDeltaSync(filter)) {
+			return SyncState.getToken(db, filter);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Downloads the data of the given filter. If a sync token is given, only
+	 * the changes since then are downloaded. If the token has expired, it is
+	 * dropped and the complete collection is downloaded.
+	 */
+	private DataResult download(SQLiteDatabase db, CollectionFilter filter, UpdateOperation uop, String token)
+			throws IOException, AuthenticationException {
+		DataResult result = download(filter, uop, token);
+		if (uop.tokenExpired) {
+			SyncState.clearToken(db, filter);
+		}
+		return result;
+	}
+
+	/**
+	 * Like {@link #download(SQLiteDatabase, CollectionFilter, UpdateOperation, String)}
+	 * , but an expired token is only marked in the operation, so this does
+	 * not use the database and can run on any thread.
+	 */
+	private DataResult download(CollectionFilter filter, UpdateOperation uop, String token) throws IOException,
+			AuthenticationException {
+		if (token != null) {
+			uop.processor.setDelta(true);
+			DataResult result = ((DeltaDataAdapter) uop.adapter).processDelta(filter.getTable(), filter.getApiPath(),
+					token, uop.processor);
+			if (result != DataResult.TOKEN_EXPIRED) {
+				return result;
+			}
+			Debug.info("Sync token of %s has expired, falling back to a full update", filter);
+			uop.tokenExpired = true;
+			uop.processor.reset();
+			uop.processor.setDelta(false);
+		}
+		return uop.adapter.process(filter.getTable(), filter.getApiPath(), uop.processor);
+	}
+
 	private static class UpdateOperation {
 
 		private DataProcessor processor;
 		private DataAdapter adapter;
+		private volatile boolean tokenExpired;
 
 	}
 
@@ -844,6 +2215,15 @@ public abstract class DataProvider extends ContentProvider {
 
 	private ConcurrentHashMap<UpdateKey, UpdateOperation> mUpdates = new ConcurrentHashMap<UpdateKey, UpdateOperation>();
 
+	private Map<String, ExecutorService> mSyncWriters = new HashMap<String, ExecutorService>();
+
+	private ExecutorService mSyncDownloaders;
+
+	/**
+	 * The databases whose writer runs a pipelined update.
+	 */
+	private ConcurrentHashMap<String, Boolean> mBusySyncWriters = new ConcurrentHashMap<String, Boolean>();
+
 	public void cancelUpdate(Account account, CollectionFilter filter) {
 		Debug.info("Attempting to cancel");
 		UpdateOperation uop = mUpdates.get(new UpdateKey(getDatabaseId(account), filter));
@@ -868,6 +2248,7 @@ public abstract class DataProvider extends ContentProvider {
 	public DataResult updateFromServer(Account account, CollectionFilter filter, ProgressListener listener,
 			long expectedCount, DatabaseUpdateListener updateListener) throws IOException, AuthenticationException {
 
+		long updateStartTime = startTiming();
 		DataResult result = DataResult.SUCCESS;
 
 		Debug.info(String.format("%s - updating from reader: %s, %s", Thread.currentThread().getName(), account.name,
@@ -876,8 +2257,8 @@ public abstract class DataProvider extends ContentProvider {
 		SQLiteDatabase db = getWritableDatabase(account);
 
 		UpdateOperation uop = new UpdateOperation();
-		uop.processor = new DataProcessor(this, account.name, db, listener, getDatabase().getTable(filter.getTable()),
-				expectedCount, filter.getSelect(), updateListener);
+		uop.processor = new DataProcessor(this, account.name, db, getStatementCache(account), listener, getDatabase()
+				.getTable(filter.getTable()), expectedCount, filter.getSelect(), updateListener);
 		uop.adapter = newDataAdapter();
 
 		UpdateKey upkey = new UpdateKey(getDatabaseId(account), filter);
@@ -891,14 +2272,41 @@ public abstract class DataProvider extends ContentProvider {
 		Date startTime = new Date();
 
 		try {
-			result = uop.adapter.process(filter.getTable(), filter.getApiPath(), uop.processor);
+			String token = getSyncToken(db, filter, uop);
+			// the writer thread could not begin a transaction while the
+			// calling thread holds one, and a second update of the same
+			// database would wait for the first with its pipeline full:
+			if (token == null && isPipelinedSync(filter) && !db.inTransaction()) {
+				String databaseId = getDatabaseId(account);
+				if (mBusySyncWriters.putIfAbsent(databaseId, Boolean.TRUE) == null) {
+					try {
+						return updatePipelined(account, db, filter, uop, startTime, updateStartTime,
+								getSyncWriter(databaseId));
+					} finally {
+						mBusySyncWriters.remove(databaseId);
+					}
+				}
+				Debug.debug("Writer of %s is busy, merging %s sequentially", databaseId, filter);
+			}
+
+			result = download(db, filter, uop, token);
 			if (uop.adapter.isCancelled()) {
 				result = DataResult.CANCELED;
 			}
+			if (isChunkedMerge(filter) && !db.inTransaction()) {
+				uop.processor.setChunking(getMergeChunkOperations(), getMergeChunkMillis());
+			}
+			long transactionStartTime = startTransactionTiming(db);
 			CompatibilityUtils.beginTransactionNonExclusive(db);
 			try {
 				if (!uop.processor.isCancelled()) {
 					uop.processor.performOperations(startTime);
+					// a token of an incomplete download would skip the missing
+					// changes in the next delta update:
+					if (result == DataResult.SUCCESS && uop.processor.getSyncToken() != null
+							&& !uop.processor.isCancelled()) {
+						SyncState.setToken(db, filter, uop.processor.getSyncToken());
+					}
 					db.setTransactionSuccessful();
 
 					if (uop.processor.isCancelled()) {
@@ -908,11 +2316,365 @@ public abstract class DataProvider extends ContentProvider {
 				return result;
 			} finally {
 				db.endTransaction();
-				uop.processor.notifyChanges();
+				recordTransaction(account, transactionStartTime);
+				onUpdateFinished(db, filter, uop, updateStartTime);
 			}
 		} finally {
+			uop.processor.close();
 			mUpdates.remove(upkey);
 		}
 
 	}
+
+	/**
+	 * Brings the materialized views up to date after an update from the
+	 * server or a local write. Only writers refresh them, queries read the
+	 * source view of an out of date one instead.
+	 */
+	private void refreshMaterializedViews(SQLiteDatabase db) {
+		if (db.inTransaction()) {
+			// the caller's transaction would be blocked even longer:
+			return;
+		}
+		try {
+			getDatabase().refreshMaterializedViews(db);
+		} catch (SQLException e) {
+			Debug.error("Error refreshing materialized views: %s", e.getMessage());
+		}
+	}
+
+	private void onUpdateFinished(SQLiteDatabase db, CollectionFilter filter, UpdateOperation uop,
+			long updateStartTime) {
+		WalOptions walOptions = getDatabase().getWalOptions();
+		if (walOptions.isWriteAheadLogging() && walOptions.isCheckpointAfterSync() && supportsWriteAheadLogging()
+				&& !db.inTransaction()) {
+			checkpoint(db);
+		}
+		refreshMaterializedViews(db);
+		uop.processor.notifyChanges();
+		recordOperation(DataProviderMetrics.OPERATION_UPDATE_FROM_SERVER, filter.getTable(),
+				(int) uop.processor.getOperationsDone(), updateStartTime);
+	}
+
+	/**
+	 * Downloads the data of the given filter on the calling thread while a
+	 * writer thread merges the entries of the main table as they arrive. The
+	 * writer owns the transaction, which is only committed if the download
+	 * has completed. The result codes are the same as in the sequential mode.
+	 */
+	private DataResult updatePipelined(final Account account, final SQLiteDatabase db,
+			final CollectionFilter filter, final UpdateOperation uop, final Date startTime, long updateStartTime,
+			ExecutorService writerThread) throws IOException, AuthenticationException {
+
+		final DataPipeline pipeline = new DataPipeline(getPipelineChunkSize(), getPipelineCapacity());
+		uop.processor.setPipeline(pipeline, uop.adapter);
+		// set before the pipeline is finished, so the writer sees it once all
+		// entries have been merged:
+		final AtomicReference<DataResult> downloadResult = new AtomicReference<DataResult>();
+
+		Future<Boolean> writer = writerThread.submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				long transactionStartTime = startTransactionTiming(db);
+				CompatibilityUtils.beginTransactionNonExclusive(db);
+				try {
+					uop.processor.performPipelinedOperations(startTime);
+					if (pipeline.isAborted()) {
+						return false;
+					}
+					if (downloadResult.get() == DataResult.SUCCESS && uop.processor.getSyncToken() != null
+							&& !uop.processor.isCancelled()) {
+						SyncState.setToken(db, filter, uop.processor.getSyncToken());
+					}
+					db.setTransactionSuccessful();
+					return true;
+				} catch (RuntimeException e) {
+					// there is no point in downloading any further:
+					uop.adapter.cancel();
+					throw e;
+				} finally {
+					pipeline.close();
+					db.endTransaction();
+					recordTransaction(account, transactionStartTime);
+				}
+			}
+
+		});
+
+		boolean downloaded = false;
+		try {
+			DataResult result = uop.adapter.process(filter.getTable(), filter.getApiPath(), uop.processor);
+			downloaded = true;
+			downloadResult.set((uop.adapter.isCancelled()) ? DataResult.CANCELED : result);
+			pipeline.finish();
+			awaitWriter(writer, true);
+			if (uop.adapter.isCancelled() || uop.processor.isCancelled()) {
+				result = DataResult.CANCELED;
+			}
+			return result;
+		} finally {
+			if (!downloaded) {
+				pipeline.abort();
+				awaitWriter(writer, false);
+			}
+			onUpdateFinished(db, filter, uop, updateStartTime);
+		}
+	}
+
+	/**
+	 * Waits for the given task, even if the calling thread is interrupted in
+	 * the meantime. The interruption is restored afterwards.
+	 */
+	private static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits until the writer of a pipelined update has ended its transaction.
+	 * 
+	 * @param rethrow
+	 *            Whether a failure of the writer is thrown or only logged,
+	 *            e.g. because the download has failed already.
+	 */
+	private void awaitWriter(Future<Boolean> writer, boolean rethrow) {
+		try {
+			// the transaction has to end before the update returns:
+			getUninterruptibly(writer);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (!rethrow) {
+				Debug.logException(cause);
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new IllegalStateException(cause);
+			}
+		}
+	}
+
+	/**
+	 * The maximum number of downloads that run at the same time in
+	 * {@link #updateFromServer(Account, CollectionFilter[], ProgressListener, DatabaseUpdateListener)}
+	 * , across all concurrent calls. This is read once, when the threads are
+	 * first needed.
+	 * 
+	 * @return {@code 4} in the default implementation.
+	 */
+	protected int getSyncConcurrency() {
+		return 4;
+	}
+
+	/**
+	 * Downloads the data of several filters concurrently and merges it in a
+	 * single transaction. Filters whose tables have been received as
+	 * delegates of other filters are merged after those, and every changed
+	 * uri is notified once after the transaction has been committed. Delta
+	 * updates are used as in
+	 * {@link #updateFromServer(Account, CollectionFilter, ProgressListener, long, DatabaseUpdateListener)}
+	 * , but merges are neither pipelined nor chunked. Each update can be
+	 * cancelled with {@link #cancelUpdate(Account, CollectionFilter)}.
+	 * 
+	 * @return the result of each filter. Only filters whose result is
+	 *         {@link DataResult#SUCCESS} are merged and have their sync token
+	 *         saved. A filter whose download has failed with an
+	 *         {@link IOException} has the result
+	 *         {@link DataResult#UNKNOWN_ERROR}.
+	 * @throws AuthenticationException
+	 *             if any download is not authorized. Nothing is merged in
+	 *             that case.
+	 */
+	public DataResult[] updateFromServer(Account account, CollectionFilter[] filters,
+			final ProgressListener listener, DatabaseUpdateListener updateListener) throws AuthenticationException {
+
+		long updateStartTime = startTiming();
+		Debug.info("%s - updating %d filters from reader: %s", Thread.currentThread().getName(), filters.length,
+				account.name);
+
+		final SQLiteDatabase db = getWritableDatabase(account);
+		DataResult[] results = new DataResult[filters.length];
+		UpdateOperation[] uops = new UpdateOperation[filters.length];
+		UpdateKey[] upkeys = new UpdateKey[filters.length];
+		List<Future<DataResult>> downloads = new ArrayList<Future<DataResult>>(filters.length);
+
+		// the listener is finished once, after all filters:
+		ProgressListener progress = new ProgressListener() {
+
+			@Override
+			public void onProgress(String message, double percentage) {
+				listener.onProgress(message, percentage);
+			}
+
+			@Override
+			public void onFinished() {
+			}
+
+		};
+
+		ExecutorService downloaders = getSyncDownloaders();
+		try {
+			for (int i = 0; i < filters.length; ++i) {
+				final CollectionFilter filter = filters[i];
+				final UpdateOperation uop = new UpdateOperation();
+				uop.processor = new DataProcessor(this, account.name, db, getStatementCache(account), progress,
+						getDatabase().getTable(filter.getTable()), 0L, filter.getSelect(), updateListener);
+				uop.adapter = newDataAdapter();
+
+				UpdateKey upkey = new UpdateKey(getDatabaseId(account), filter);
+				if (mUpdates.putIfAbsent(upkey, uop) != null) {
+					results[i] = DataResult.REJECTED;
+					downloads.add(null);
+					continue;
+				}
+				uops[i] = uop;
+				upkeys[i] = upkey;
+				// the downloads must not use the database: they would wait
+				// for a transaction of the calling thread, which waits for
+				// them.
+				final String token = getSyncToken(db, filter, uop);
+				downloads.add(downloaders.submit(new Callable<DataResult>() {
+
+					@Override
+					public DataResult call() throws Exception {
+						DataResult result = download(filter, uop, token);
+						return (uop.adapter.isCancelled()) ? DataResult.CANCELED : result;
+					}
+
+				}));
+			}
+
+			AuthenticationException authenticationError = null;
+			final List<Integer> merged = new ArrayList<Integer>();
+			for (int i = 0; i < filters.length; ++i) {
+				if (downloads.get(i) == null) {
+					continue;
+				}
+				try {
+					results[i] = getUninterruptibly(downloads.get(i));
+					// merging an incomplete download would delete the rows
+					// that have not been received:
+					if (results[i] == DataResult.SUCCESS && !uops[i].processor.isCancelled()) {
+						merged.add(i);
+					}
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof AuthenticationException) {
+						authenticationError = (AuthenticationException) cause;
+						results[i] = DataResult.ACCESS_ERROR;
+						for (UpdateOperation uop : uops) {
+							if (uop != null) {
+								uop.adapter.cancel();
+							}
+						}
+					} else if (cause instanceof IOException) {
+						Debug.logException(cause);
+						results[i] = DataResult.UNKNOWN_ERROR;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					} else {
+						throw new IllegalStateException(cause);
+					}
+				}
+			}
+			for (int i = 0; i < filters.length; ++i) {
+				if (uops[i] != null && uops[i].tokenExpired) {
+					SyncState.clearToken(db, filters[i]);
+				}
+			}
+			if (authenticationError != null) {
+				throw authenticationError;
+			}
+
+			// merge tables that have been received as delegates of other
+			// tables after those:
+			final int[] depths = new int[filters.length];
+			for (int i : merged) {
+				Table table = getDatabase().getTable(filters[i].getTable());
+				for (int j : merged) {
+					depths[i] = Math.max(depths[i], uops[j].processor.getDepth(table));
+				}
+			}
+			Collections.sort(merged, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer lhs, Integer rhs) {
+					return (depths[lhs] < depths[rhs]) ? -1 : ((depths[lhs] > depths[rhs]) ? 1 : 0);
+				}
+
+			});
+
+			Date startTime = new Date();
+			beginNotifications();
+			try {
+				long transactionStartTime = startTransactionTiming(db);
+				CompatibilityUtils.beginTransactionNonExclusive(db);
+				try {
+					for (int i : merged) {
+						DataProcessor processor = uops[i].processor;
+						processor.performOperations(startTime);
+						if (processor.isCancelled()) {
+							results[i] = DataResult.CANCELED;
+						} else if (results[i] == DataResult.SUCCESS && processor.getSyncToken() != null) {
+							SyncState.setToken(db, filters[i], processor.getSyncToken());
+						}
+					}
+					db.setTransactionSuccessful();
+					setNotificationsSuccessful();
+				} finally {
+					db.endTransaction();
+					recordTransaction(account, transactionStartTime);
+				}
+				refreshMaterializedViews(db);
+				for (int i : merged) {
+					uops[i].processor.notifyChanges();
+				}
+			} finally {
+				endNotifications();
+			}
+
+			WalOptions walOptions = getDatabase().getWalOptions();
+			if (walOptions.isWriteAheadLogging() && walOptions.isCheckpointAfterSync()
+					&& supportsWriteAheadLogging() && !db.inTransaction()) {
+				checkpoint(db);
+			}
+			for (int i : merged) {
+				recordOperation(DataProviderMetrics.OPERATION_UPDATE_FROM_SERVER, filters[i].getTable(),
+						(int) uops[i].processor.getOperationsDone(), updateStartTime);
+			}
+			return results;
+		} finally {
+			for (int i = 0; i < downloads.size(); ++i) {
+				// stop downloads that are still running after a failure:
+				if (downloads.get(i) != null && !downloads.get(i).isDone()) {
+					uops[i].adapter.cancel();
+					uops[i].processor.cancel();
+					downloads.get(i).cancel(true);
+				}
+			}
+			for (int i = 0; i < filters.length; ++i) {
+				if (uops[i] != null) {
+					uops[i].processor.close();
+					mUpdates.remove(upkeys[i]);
+				}
+			}
+			listener.onFinished();
+		}
+	}
 }
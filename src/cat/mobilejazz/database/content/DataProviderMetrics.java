@@ -0,0 +1,80 @@
+package cat.mobilejazz.database.content;
+
+/**
+ * Receives measurements of the operations executed by a {@link DataProvider}
+ * (see {@link DataProvider#newMetrics()}). Implementations are called from
+ * every thread that accesses the provider and need to be thread safe.
+ *
+ * Durations are measured with {@link System#nanoTime()}. Nothing is measured
+ * unless {@link #isEnabled()} returns {@code true}.
+ */
+public interface DataProviderMetrics {
+
+	public final static int OPERATION_QUERY = 0;
+	public final static int OPERATION_INSERT = 1;
+	public final static int OPERATION_BULK_INSERT = 2;
+	public final static int OPERATION_UPDATE = 3;
+	public final static int OPERATION_DELETE = 4;
+	public final static int OPERATION_APPLY_BATCH = 5;
+	public final static int OPERATION_UPDATE_FROM_SERVER = 6;
+
+	/**
+	 * The number of different operations.
+	 */
+	public final static int OPERATION_COUNT = 7;
+
+	/**
+	 * Metrics that discard everything. This is the default of
+	 * {@link DataProvider}.
+	 */
+	public final static DataProviderMetrics NONE = new DataProviderMetrics() {
+
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+
+		@Override
+		public void onOperation(int operation, String table, int rows, long durationNanos) {
+		}
+
+		@Override
+		public void onTransaction(String databaseId, long holdTimeNanos) {
+		}
+
+	};
+
+	/**
+	 * @return {@code true} if the provider should take measurements and report
+	 *         them to this instance.
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * Called after an operation has finished.
+	 *
+	 * @param operation
+	 *            One of the {@code OPERATION_*} constants.
+	 * @param table
+	 *            The table or view the operation refers to or {@code null} if
+	 *            it is not bound to a single table (e.g. a batch).
+	 * @param rows
+	 *            The number of rows affected, or {@code -1} if unknown (e.g.
+	 *            the rows of a query that have not been read yet).
+	 * @param durationNanos
+	 *            The time the operation took.
+	 */
+	public void onOperation(int operation, String table, int rows, long durationNanos);
+
+	/**
+	 * Called after a transaction that has been started by the provider has
+	 * ended.
+	 *
+	 * @param databaseId
+	 *            The database (see {@link DataProvider#getDatabaseId}).
+	 * @param holdTimeNanos
+	 *            The time between beginning and ending the transaction.
+	 */
+	public void onTransaction(String databaseId, long holdTimeNanos);
+
+}
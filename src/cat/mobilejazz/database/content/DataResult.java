@@ -1,5 +1,9 @@
 package cat.mobilejazz.database.content;
 
 public enum DataResult {
-	SUCCESS, CANCELED, ACCESS_ERROR, REJECTED, UNKNOWN_ERROR
+	SUCCESS, CANCELED, ACCESS_ERROR, REJECTED, UNKNOWN_ERROR,
+	/**
+	 * The sync token of a delta update is no longer valid.
+	 */
+	TOKEN_EXPIRED
 }
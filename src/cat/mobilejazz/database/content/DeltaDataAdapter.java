@@ -0,0 +1,57 @@
+package cat.mobilejazz.database.content;
+
+import java.io.IOException;
+
+import org.apache.http.auth.AuthenticationException;
+
+import cat.mobilejazz.database.Table;
+
+/**
+ * A {@link DataAdapter} that is able to download only the changes since a
+ * previous update. To obtain the first token, the adapter reports it with
+ * {@link DeltaListener#onSyncToken(String)} during a full update (
+ * {@link #process(String, String, DataAdapterListener)}) as well, if the
+ * listener is a {@link DeltaListener}.
+ */
+public interface DeltaDataAdapter extends DataAdapter {
+
+	public static interface DeltaListener extends DataAdapterListener {
+
+		/**
+		 * The entity with the given server id has been deleted on the server.
+		 */
+		public void onDeletedEntry(Table table, long serverId);
+
+		/**
+		 * The token that identifies the state of the server after this
+		 * update. It is stored along with the data and passed to the next
+		 * delta update.
+		 */
+		public void onSyncToken(String token);
+
+	}
+
+	/**
+	 * Downloads the changes since the state identified by the given token.
+	 * Changed and new entities are reported with
+	 * {@link DataAdapterListener#onDataEntry}, deleted ones with
+	 * {@link DeltaListener#onDeletedEntry(Table, long)}. Delegates of a
+	 * changed entity need to be reported completely.
+	 * 
+	 * @param table
+	 *            The database table this api call corresponds to.
+	 * @param apiPath
+	 *            The api path on the server.
+	 * @param syncToken
+	 *            The token that has been reported by the previous update.
+	 * @param listener
+	 *            A {@link DeltaListener} that is notified when data arrives.
+	 * @return {@link DataResult#TOKEN_EXPIRED} if the server does not accept
+	 *         the token anymore. A full update is then performed instead.
+	 * @throws IOException
+	 * @throws AuthenticationException
+	 */
+	public DataResult processDelta(String table, String apiPath, String syncToken, DeltaListener listener)
+			throws IOException, AuthenticationException;
+
+}
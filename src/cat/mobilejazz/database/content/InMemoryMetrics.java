@@ -0,0 +1,294 @@
+package cat.mobilejazz.database.content;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps counts, affected rows and latency histograms per operation and table
+ * as well as the transaction hold times per database in memory. Recording is
+ * lock-free and does not allocate once a table has been seen. The values can
+ * be read at any time, e.g. to be displayed on a diagnostics screen.
+ */
+public class InMemoryMetrics implements DataProviderMetrics {
+
+	/**
+	 * Table key for operations that are not bound to a single table.
+	 */
+	private static final String NO_TABLE = "";
+
+	/**
+	 * A histogram of durations with exponential buckets. Bucket {@code i}
+	 * counts the durations from {@code 2^i} (inclusive) to {@code 2^(i+1)}
+	 * (exclusive) microseconds. Bucket {@code 0} also contains everything
+	 * below one microsecond and the last bucket everything above.
+	 */
+	public static class Histogram {
+
+		public static final int BUCKET_COUNT = 32;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private static int getBucket(long nanos) {
+			long micros = nanos / 1000L;
+			if (micros <= 1L) {
+				return 0;
+			}
+			int bucket = 63 - Long.numberOfLeadingZeros(micros);
+			return Math.min(bucket, BUCKET_COUNT - 1);
+		}
+
+		public void record(long nanos) {
+			buckets.incrementAndGet(getBucket(nanos));
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public long getMeanNanos() {
+			long c = count.get();
+			return (c == 0L) ? 0L : totalNanos.get() / c;
+		}
+
+		/**
+		 * @return the number of durations in the given bucket.
+		 */
+		public long getBucketCount(int bucket) {
+			return buckets.get(bucket);
+		}
+
+		/**
+		 * Estimates a percentile of the recorded durations.
+		 *
+		 * @param percentile
+		 *            A value between {@code 0} and {@code 100}.
+		 * @return the upper bound of the bucket the percentile falls in, but
+		 *         no more than the maximum recorded duration.
+		 */
+		public long getPercentileNanos(double percentile) {
+			long c = count.get();
+			if (c == 0L) {
+				return 0L;
+			}
+			long rank = (long) Math.ceil(c * percentile / 100.0);
+			long seen = 0L;
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(TimeUnit.MICROSECONDS.toNanos(1L << (i + 1)), maxNanos.get());
+				}
+			}
+			return maxNanos.get();
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				buckets.set(i, 0L);
+			}
+			count.set(0L);
+			totalNanos.set(0L);
+			maxNanos.set(0L);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d, mean=%.2fms, p50=%.2fms, p95=%.2fms, max=%.2fms", getCount(),
+					getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(95) / 1e6,
+					getMaxNanos() / 1e6);
+		}
+
+	}
+
+	/**
+	 * The measurements of one operation on one table.
+	 */
+	public static class Stats {
+
+		private final int operation;
+		private final String table;
+		private final AtomicLong rows = new AtomicLong();
+		private final Histogram latency = new Histogram();
+
+		public Stats(int operation, String table) {
+			this.operation = operation;
+			this.table = table;
+		}
+
+		/**
+		 * @return one of the {@code OPERATION_*} constants of
+		 *         {@link DataProviderMetrics}.
+		 */
+		public int getOperation() {
+			return operation;
+		}
+
+		/**
+		 * @return the table or {@code null} for operations that are not bound
+		 *         to a single table.
+		 */
+		public String getTable() {
+			return table;
+		}
+
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		/**
+		 * @return the total number of rows affected. Operations that do not
+		 *         know the number of rows are not counted.
+		 */
+		public long getRows() {
+			return rows.get();
+		}
+
+		public Histogram getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s: rows=%d, %s", getOperationName(operation), (table == null) ? "-" : table,
+					getRows(), latency);
+		}
+
+	}
+
+	private static final String[] OPERATION_NAMES = new String[] { "query", "insert", "bulkInsert", "update",
+			"delete", "applyBatch", "updateFromServer" };
+
+	public static String getOperationName(int operation) {
+		return OPERATION_NAMES[operation];
+	}
+
+	private final ConcurrentHashMap<String, Stats>[] mStats;
+	private final ConcurrentHashMap<String, Histogram> mTransactions;
+
+	@SuppressWarnings("unchecked")
+	public InMemoryMetrics() {
+		mStats = new ConcurrentHashMap[OPERATION_COUNT];
+		for (int i = 0; i < OPERATION_COUNT; ++i) {
+			mStats[i] = new ConcurrentHashMap<String, Stats>();
+		}
+		mTransactions = new ConcurrentHashMap<String, Histogram>();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+
+	private Stats getOrCreateStats(int operation, String table) {
+		String key = (table == null) ? NO_TABLE : table;
+		Stats stats = mStats[operation].get(key);
+		if (stats == null) {
+			stats = new Stats(operation, table);
+			Stats previous = mStats[operation].putIfAbsent(key, stats);
+			if (previous != null) {
+				stats = previous;
+			}
+		}
+		return stats;
+	}
+
+	@Override
+	public void onOperation(int operation, String table, int rows, long durationNanos) {
+		Stats stats = getOrCreateStats(operation, table);
+		if (rows > 0) {
+			stats.rows.addAndGet(rows);
+		}
+		stats.latency.record(durationNanos);
+	}
+
+	@Override
+	public void onTransaction(String databaseId, long holdTimeNanos) {
+		Histogram histogram = mTransactions.get(databaseId);
+		if (histogram == null) {
+			histogram = new Histogram();
+			Histogram previous = mTransactions.putIfAbsent(databaseId, histogram);
+			if (previous != null) {
+				histogram = previous;
+			}
+		}
+		histogram.record(holdTimeNanos);
+	}
+
+	/**
+	 * @return the measurements of the given operation and table or
+	 *         {@code null} if the operation has not been executed on the table
+	 *         yet.
+	 */
+	public Stats getStats(int operation, String table) {
+		return mStats[operation].get((table == null) ? NO_TABLE : table);
+	}
+
+	/**
+	 * @return the measurements of all operations and tables, ordered by
+	 *         operation.
+	 */
+	public List<Stats> getStats() {
+		List<Stats> result = new ArrayList<Stats>();
+		for (ConcurrentHashMap<String, Stats> stats : mStats) {
+			result.addAll(new TreeMap<String, Stats>(stats).values());
+		}
+		return result;
+	}
+
+	/**
+	 * @return the transaction hold times by database id.
+	 */
+	public Map<String, Histogram> getTransactionHoldTimes() {
+		return new TreeMap<String, Histogram>(mTransactions);
+	}
+
+	/**
+	 * Sets all values back to zero.
+	 */
+	public void reset() {
+		for (ConcurrentHashMap<String, Stats> stats : mStats) {
+			for (Stats s : stats.values()) {
+				s.rows.set(0L);
+				s.latency.reset();
+			}
+		}
+		for (Histogram h : mTransactions.values()) {
+			h.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (Stats s : getStats()) {
+			result.append(s).append('\n');
+		}
+		for (Map.Entry<String, Histogram> t : getTransactionHoldTimes().entrySet()) {
+			result.append("transaction ").append(t.getKey()).append(": ").append(t.getValue()).append('\n');
+		}
+		return result.toString();
+	}
+
+}
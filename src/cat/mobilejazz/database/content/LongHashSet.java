@@ -0,0 +1,153 @@
+package cat.mobilejazz.database.content;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of primitive {@code long} values based on open addressing with linear
+ * probing. Lookups are lock-free and do not allocate. Values are added under
+ * the lock of the set. Values cannot be removed.
+ *
+ * The table is sized for the expected number of values at construction and
+ * doubles whenever it is full. A resized table is filled completely before
+ * it replaces the old one, so concurrent lookups always see all values that
+ * have been added before.
+ */
+public class LongHashSet {
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private static final float MAX_LOAD = 0.75f;
+
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private volatile AtomicLongArray mTable;
+	private int mMaxSize;
+	private volatile int mSize;
+	private final AtomicBoolean mContainsEmpty;
+
+	/**
+	 * @param expectedSize
+	 *            The number of values the table is sized for initially.
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = 16;
+		while (capacity * MAX_LOAD < expectedSize && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		mTable = newTable(capacity);
+		mMaxSize = getMaxSize(capacity);
+		mContainsEmpty = new AtomicBoolean();
+	}
+
+	private static AtomicLongArray newTable(int capacity) {
+		AtomicLongArray table = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; ++i) {
+			table.set(i, EMPTY);
+		}
+		return table;
+	}
+
+	private static int getMaxSize(int capacity) {
+		// a full table would make probing for absent values endless:
+		return (capacity < MAX_CAPACITY) ? (int) (capacity * MAX_LOAD) : capacity - 1;
+	}
+
+	private static int hash(long value) {
+		// finalizer of MurmurHash3:
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return (int) value;
+	}
+
+	/**
+	 * @return {@code true} if the value has been put into a free slot of the
+	 *         given table, {@code false} if it is contained already.
+	 */
+	private static boolean insert(AtomicLongArray table, long value) {
+		int mask = table.length() - 1;
+		int i = hash(value) & mask;
+		while (true) {
+			long current = table.get(i);
+			if (current == value) {
+				return false;
+			} else if (current == EMPTY) {
+				table.set(i, value);
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private void grow() {
+		AtomicLongArray table = mTable;
+		int capacity = table.length();
+		if (capacity >= MAX_CAPACITY) {
+			throw new IllegalStateException("LongHashSet cannot grow beyond " + mMaxSize + " values");
+		}
+		AtomicLongArray grown = newTable(capacity << 1);
+		for (int i = 0; i < capacity; ++i) {
+			long value = table.get(i);
+			if (value != EMPTY) {
+				insert(grown, value);
+			}
+		}
+		mMaxSize = getMaxSize(grown.length());
+		mTable = grown;
+	}
+
+	/**
+	 * Adds a value to this set.
+	 *
+	 * @return {@code true} if the value has not been contained before.
+	 */
+	public boolean add(long value) {
+		if (value == EMPTY) {
+			return mContainsEmpty.compareAndSet(false, true);
+		}
+		if (contains(value)) {
+			return false;
+		}
+		synchronized (this) {
+			if (mSize >= mMaxSize) {
+				grow();
+			}
+			if (insert(mTable, value)) {
+				++mSize;
+				return true;
+			} else {
+				return false;
+			}
+		}
+	}
+
+	public boolean contains(long value) {
+		if (value == EMPTY) {
+			return mContainsEmpty.get();
+		}
+		AtomicLongArray table = mTable;
+		int mask = table.length() - 1;
+		int i = hash(value) & mask;
+		for (int probes = 0; probes <= mask; ++probes) {
+			long current = table.get(i);
+			if (current == value) {
+				return true;
+			} else if (current == EMPTY) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of values in this set.
+	 */
+	public int size() {
+		return mSize + (mContainsEmpty.get() ? 1 : 0);
+	}
+
+}
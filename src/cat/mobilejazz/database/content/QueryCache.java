@@ -0,0 +1,461 @@
+package cat.mobilejazz.database.content;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.AbstractCursor;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.os.Build;
+
+/**
+ * Caches the results of queries as immutable snapshots (see
+ * {@link DataProvider#getQueryCacheSize()}). Each table and view has a
+ * generation that is incremented whenever it changes. An entry is only
+ * returned while the generation of its table or view is the one it has been
+ * read at, so invalidation does not need to find the entries of a table.
+ * Invalidated entries are dropped when they are looked up or when they are
+ * the least recently used ones.
+ *
+ * All methods are thread safe.
+ */
+public class QueryCache {
+
+	/**
+	 * The rows of a query result. Instances are never modified and are shared
+	 * by all cursors that are returned for the same entry. The rows of a
+	 * result that is too large to be cached are {@code null}.
+	 */
+	private static class Snapshot {
+
+		private final String[] columns;
+		private final Object[][] rows;
+		private final String user;
+		private final String table;
+		private final long generation;
+
+		public Snapshot(String[] columns, Object[][] rows, String user, String table, long generation) {
+			this.columns = columns;
+			this.rows = rows;
+			this.user = user;
+			this.table = table;
+			this.generation = generation;
+		}
+
+	}
+
+	/**
+	 * A cursor over a {@link Snapshot}.
+	 */
+	private static class SnapshotCursor extends AbstractCursor {
+
+		private final Snapshot mSnapshot;
+
+		public SnapshotCursor(Snapshot snapshot) {
+			mSnapshot = snapshot;
+		}
+
+		private Object get(int column) {
+			if (mPos < 0 || mPos >= mSnapshot.rows.length) {
+				throw new IllegalStateException("Cursor is not on a row: " + mPos);
+			}
+			return mSnapshot.rows[mPos][column];
+		}
+
+		@Override
+		public int getCount() {
+			return mSnapshot.rows.length;
+		}
+
+		@Override
+		public String[] getColumnNames() {
+			return mSnapshot.columns;
+		}
+
+		@Override
+		public String getString(int column) {
+			Object value = get(column);
+			return (value != null) ? value.toString() : null;
+		}
+
+		private Number getNumber(int column) {
+			Object value = get(column);
+			if (value == null) {
+				return 0L;
+			} else if (value instanceof Number) {
+				return (Number) value;
+			} else if (value instanceof String) {
+				try {
+					return Double.valueOf((String) value);
+				} catch (NumberFormatException e) {
+					return 0L;
+				}
+			} else {
+				throw new IllegalStateException("Column " + column + " is a blob");
+			}
+		}
+
+		@Override
+		public short getShort(int column) {
+			return getNumber(column).shortValue();
+		}
+
+		@Override
+		public int getInt(int column) {
+			return getNumber(column).intValue();
+		}
+
+		@Override
+		public long getLong(int column) {
+			return getNumber(column).longValue();
+		}
+
+		@Override
+		public float getFloat(int column) {
+			return getNumber(column).floatValue();
+		}
+
+		@Override
+		public double getDouble(int column) {
+			return getNumber(column).doubleValue();
+		}
+
+		@Override
+		public byte[] getBlob(int column) {
+			Object value = get(column);
+			return (value == null || value instanceof byte[]) ? (byte[]) value : getString(column).getBytes();
+		}
+
+		@Override
+		public boolean isNull(int column) {
+			return get(column) == null;
+		}
+
+		@Override
+		public int getType(int column) {
+			Object value = get(column);
+			if (value == null) {
+				return FIELD_TYPE_NULL;
+			} else if (value instanceof Long) {
+				return FIELD_TYPE_INTEGER;
+			} else if (value instanceof Double) {
+				return FIELD_TYPE_FLOAT;
+			} else if (value instanceof byte[]) {
+				return FIELD_TYPE_BLOB;
+			} else {
+				return FIELD_TYPE_STRING;
+			}
+		}
+
+	}
+
+	private final int mMaxEntries;
+	private final int mMaxRows;
+	private final LinkedHashMap<String, Snapshot> mEntries;
+	private final ConcurrentHashMap<String, AtomicLong> mGenerations;
+	private final ConcurrentHashMap<String, AtomicLong> mHolds;
+	private final AtomicLong mHits;
+	private final AtomicLong mMisses;
+
+	/**
+	 * @param maxEntries
+	 *            The number of results that are cached.
+	 * @param maxRows
+	 *            Results with more rows are not cached.
+	 */
+	public QueryCache(final int maxEntries, int maxRows) {
+		mMaxEntries = maxEntries;
+		mMaxRows = maxRows;
+		mEntries = new LinkedHashMap<String, Snapshot>(maxEntries, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+				return size() > mMaxEntries;
+			}
+
+		};
+		mGenerations = new ConcurrentHashMap<String, AtomicLong>();
+		mHolds = new ConcurrentHashMap<String, AtomicLong>();
+		mHits = new AtomicLong();
+		mMisses = new AtomicLong();
+	}
+
+	private static void append(StringBuilder key, String value) {
+		// the length keeps values with separators apart:
+		if (value == null) {
+			key.append("-1:");
+		} else {
+			key.append(value.length()).append(':').append(value);
+		}
+	}
+
+	private static void append(StringBuilder key, String[] values) {
+		if (values == null) {
+			key.append("-1:");
+		} else {
+			key.append(values.length).append(':');
+			for (String v : values) {
+				append(key, v);
+			}
+		}
+	}
+
+	/**
+	 * @return the key of a query.
+	 */
+	public static String getKey(String user, String table, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder, String groupBy, String limit) {
+		StringBuilder key = new StringBuilder();
+		append(key, user);
+		append(key, table);
+		append(key, projection);
+		append(key, selection);
+		append(key, selectionArgs);
+		append(key, sortOrder);
+		append(key, groupBy);
+		append(key, limit);
+		return key.toString();
+	}
+
+	private static AtomicLong getCounter(ConcurrentHashMap<String, AtomicLong> counters, String user, String table) {
+		String key = user + '/' + table;
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			counter = new AtomicLong();
+			AtomicLong previous = counters.putIfAbsent(key, counter);
+			if (previous != null) {
+				counter = previous;
+			}
+		}
+		return counter;
+	}
+
+	private AtomicLong getGenerationCounter(String user, String table) {
+		return getCounter(mGenerations, user, table);
+	}
+
+	/**
+	 * @return the current generation of a table or view. This has to be read
+	 *         before the query is executed, see
+	 *         {@link #put(String, String, String, long, Cursor)}.
+	 */
+	public long getGeneration(String user, String table) {
+		return getGenerationCounter(user, table).get();
+	}
+
+	/**
+	 * Invalidates all results of a table or view.
+	 */
+	public void invalidate(String user, String table) {
+		getGenerationCounter(user, table).incrementAndGet();
+	}
+
+	/**
+	 * Invalidates all results of a table or view and does not cache new ones
+	 * until {@link #release(String, String)} has been called as often. This
+	 * covers a transaction that has changed the table: the new data must not
+	 * be missed if the end of the transaction goes unnoticed.
+	 */
+	public void hold(String user, String table) {
+		getCounter(mHolds, user, table).incrementAndGet();
+		invalidate(user, table);
+	}
+
+	/**
+	 * Invalidates all results of a table or view again and ends a
+	 * {@link #hold(String, String)}.
+	 */
+	public void release(String user, String table) {
+		invalidate(user, table);
+		getCounter(mHolds, user, table).decrementAndGet();
+	}
+
+	private boolean isHeld(String user, String table) {
+		AtomicLong holds = mHolds.get(user + '/' + table);
+		return holds != null && holds.get() > 0L;
+	}
+
+	/**
+	 * @return a new cursor over the cached result of the query with the given
+	 *         key or {@code null} if there is no valid result.
+	 */
+	public Cursor get(String key) {
+		Snapshot snapshot = getSnapshot(key);
+		if (snapshot != null && snapshot.rows != null) {
+			mHits.incrementAndGet();
+			return new SnapshotCursor(snapshot);
+		} else {
+			mMisses.incrementAndGet();
+			return null;
+		}
+	}
+
+	private Snapshot getSnapshot(String key) {
+		synchronized (mEntries) {
+			Snapshot snapshot = mEntries.get(key);
+			if (snapshot != null && snapshot.generation != getGeneration(snapshot.user, snapshot.table)) {
+				mEntries.remove(key);
+				snapshot = null;
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * @return the maximum number of rows of a cached result.
+	 */
+	public int getMaxRows() {
+		return mMaxRows;
+	}
+
+	/**
+	 * @return the limit to execute a query with, so the size of its result
+	 *         can be checked without counting more than
+	 *         {@link #getMaxRows()} + 1 rows, or {@code null} if the query
+	 *         should not be cached: its limit is not a plain number, or its
+	 *         result has been too large before (see
+	 *         {@link #putTooLarge(String, String, String, long)}).
+	 */
+	public String getProbeLimit(String key, String limit) {
+		String probe;
+		if (limit == null) {
+			probe = String.valueOf(mMaxRows + 1);
+		} else {
+			try {
+				probe = (Integer.parseInt(limit.trim()) <= mMaxRows) ? limit : String.valueOf(mMaxRows + 1);
+			} catch (NumberFormatException e) {
+				// e.g. with an offset:
+				return null;
+			}
+		}
+		Snapshot snapshot = getSnapshot(key);
+		return (snapshot != null && snapshot.rows == null) ? null : probe;
+	}
+
+	/**
+	 * Remembers that the result of a query has more than
+	 * {@link #getMaxRows()} rows, so it is not probed again until its table
+	 * or view changes.
+	 */
+	public void putTooLarge(String key, String user, String table, long generation) {
+		if (!isHeld(user, table)) {
+			synchronized (mEntries) {
+				mEntries.put(key, new Snapshot(null, null, user, table, generation));
+			}
+		}
+	}
+
+	private static Object readValue(Cursor cursor, int column) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			switch (cursor.getType(column)) {
+			case Cursor.FIELD_TYPE_NULL:
+				return null;
+			case Cursor.FIELD_TYPE_INTEGER:
+				return cursor.getLong(column);
+			case Cursor.FIELD_TYPE_FLOAT:
+				return cursor.getDouble(column);
+			case Cursor.FIELD_TYPE_BLOB:
+				return cursor.getBlob(column);
+			default:
+				return cursor.getString(column);
+			}
+		} else if (cursor instanceof AbstractWindowedCursor) {
+			AbstractWindowedCursor c = (AbstractWindowedCursor) cursor;
+			if (c.isNull(column)) {
+				return null;
+			} else if (c.isLong(column)) {
+				return c.getLong(column);
+			} else if (c.isFloat(column)) {
+				return c.getDouble(column);
+			} else if (c.isBlob(column)) {
+				return c.getBlob(column);
+			} else {
+				return c.getString(column);
+			}
+		} else {
+			return cursor.getString(column);
+		}
+	}
+
+	/**
+	 * Caches the result of a query if it is small enough and its table or
+	 * view is not held. The size is checked with {@link Cursor#getCount()},
+	 * which reads all rows of a {@link android.database.sqlite.SQLiteCursor}.
+	 * Execute the query with {@link #getProbeLimit(String, String)} to keep
+	 * this cheap.
+	 *
+	 * @param generation
+	 *            The generation of the table or view before the query has
+	 *            been executed. If it has changed in the meantime, the result
+	 *            is never returned by {@link #get(String)}.
+	 * @param cursor
+	 *            The result of the query.
+	 * @return a cursor over the cached result, in which case the given cursor
+	 *         has been closed, or the given cursor if the result is not
+	 *         cached.
+	 */
+	public Cursor put(String key, String user, String table, long generation, Cursor cursor) {
+		if (cursor == null || isHeld(user, table) || cursor.getCount() > mMaxRows) {
+			return cursor;
+		}
+		String[] columns = cursor.getColumnNames();
+		List<Object[]> rows = new ArrayList<Object[]>();
+		try {
+			cursor.moveToPosition(-1);
+			while (cursor.moveToNext()) {
+				Object[] row = new Object[columns.length];
+				for (int c = 0; c < columns.length; ++c) {
+					row[c] = readValue(cursor, c);
+				}
+				rows.add(row);
+			}
+		} finally {
+			cursor.close();
+		}
+		Snapshot snapshot = new Snapshot(columns, rows.toArray(new Object[rows.size()][]), user, table, generation);
+		synchronized (mEntries) {
+			mEntries.put(key, snapshot);
+		}
+		return new SnapshotCursor(snapshot);
+	}
+
+	/**
+	 * @return the number of queries that have been answered from the cache.
+	 */
+	public long getHits() {
+		return mHits.get();
+	}
+
+	/**
+	 * @return the number of queries that have not been found in the cache.
+	 */
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	/**
+	 * @return the number of cached results, including invalidated ones that
+	 *         have not been dropped yet and results that are too large.
+	 */
+	public int size() {
+		synchronized (mEntries) {
+			return mEntries.size();
+		}
+	}
+
+	/**
+	 * Drops all cached results.
+	 */
+	public void clear() {
+		synchronized (mEntries) {
+			mEntries.clear();
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+package cat.mobilejazz.database.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import cat.mobilejazz.utilities.debug.Debug;
+
+/**
+ * Collects the query plans of the queries executed by a {@link DataProvider}
+ * (see {@link DataProvider#newQueryPlanInspector()}). The plan of each
+ * distinct SQL statement is determined once with {@code EXPLAIN QUERY PLAN}.
+ * Statements that only differ in their arguments share a plan. For each plan,
+ * the number of executions and their durations are recorded.
+ *
+ * A plan is considered problematic if it scans a whole table or needs a
+ * temporary B-tree to sort or group, which usually means that an index is
+ * missing (see {@link cat.mobilejazz.database.annotation.Index}).
+ *
+ * All methods are thread safe.
+ */
+public class QueryPlanInspector {
+
+	/**
+	 * Queries of {@link DataProvider#query}.
+	 */
+	public static final String SOURCE_QUERY = "query";
+
+	/**
+	 * Queries that read the local rows while data from the server is merged.
+	 */
+	public static final String SOURCE_MERGE = "merge";
+
+	/**
+	 * The select statements of the views of the
+	 * {@link cat.mobilejazz.database.Database}.
+	 */
+	public static final String SOURCE_VIEW = "view";
+
+	public static class QueryPlan {
+
+		private final String source;
+		private final String sql;
+		private final List<String> details;
+		private final int tableScans;
+		private final int tempBTrees;
+		private final AtomicLong executions;
+		private final AtomicLong totalNanos;
+		private final AtomicLong maxNanos;
+
+		private QueryPlan(String source, String sql, List<String> details) {
+			this.source = source;
+			this.sql = sql;
+			this.details = Collections.unmodifiableList(details);
+			int scans = 0;
+			int trees = 0;
+			for (String d : details) {
+				if (isTableScan(d)) {
+					++scans;
+				}
+				if (d.contains("USE TEMP B-TREE")) {
+					++trees;
+				}
+			}
+			this.tableScans = scans;
+			this.tempBTrees = trees;
+			this.executions = new AtomicLong();
+			this.totalNanos = new AtomicLong();
+			this.maxNanos = new AtomicLong();
+		}
+
+		private static boolean isTableScan(String detail) {
+			// e.g. "SCAN TABLE items" or "SCAN items" since SQLite 3.36, but
+			// not "SCAN TABLE items USING COVERING INDEX items_idx":
+			return detail.startsWith("SCAN ") && !detail.startsWith("SCAN SUBQUERY")
+					&& !detail.startsWith("SCAN CONSTANT") && !detail.contains(" INDEX ")
+					&& !detail.contains(" PRIMARY KEY");
+		}
+
+		private void record(long nanos) {
+			executions.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+		}
+
+		/**
+		 * @return one of the {@code SOURCE_*} constants.
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		/**
+		 * @return the detail column of each row of the plan.
+		 */
+		public List<String> getDetails() {
+			return details;
+		}
+
+		/**
+		 * @return the number of full table scans in the plan.
+		 */
+		public int getTableScans() {
+			return tableScans;
+		}
+
+		/**
+		 * @return the number of temporary B-trees in the plan.
+		 */
+		public int getTempBTrees() {
+			return tempBTrees;
+		}
+
+		public boolean isProblematic() {
+			return tableScans > 0 || tempBTrees > 0;
+		}
+
+		public long getExecutions() {
+			return executions.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[%s] %s: %d scans, %d temp b-trees, %d executions, %d ms total, %d ms max %s",
+					source, sql, tableScans, tempBTrees, getExecutions(), getTotalNanos() / 1000000L,
+					getMaxNanos() / 1000000L, details);
+		}
+
+	}
+
+	private static final Comparator<QueryPlan> BY_TOTAL_TIME = new Comparator<QueryPlan>() {
+
+		@Override
+		public int compare(QueryPlan lhs, QueryPlan rhs) {
+			long l = lhs.getTotalNanos();
+			long r = rhs.getTotalNanos();
+			return (l > r) ? -1 : ((l < r) ? 1 : 0);
+		}
+
+	};
+
+	private final ConcurrentHashMap<String, QueryPlan> mPlans;
+
+	public QueryPlanInspector() {
+		mPlans = new ConcurrentHashMap<String, QueryPlan>();
+	}
+
+	/**
+	 * @return the plan of the given statement. It is only determined the
+	 *         first time the statement is seen.
+	 */
+	public QueryPlan inspect(SQLiteDatabase db, String source, String sql, String[] selectionArgs) {
+		QueryPlan plan = mPlans.get(sql);
+		if (plan == null) {
+			plan = new QueryPlan(source, sql, explain(db, sql, selectionArgs));
+			QueryPlan previous = mPlans.putIfAbsent(sql, plan);
+			if (previous != null) {
+				plan = previous;
+			} else if (plan.isProblematic()) {
+				Debug.warning("Query plan: %s", plan);
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Like {@link #inspect(SQLiteDatabase, String, String, String[])} for the
+	 * statement that {@link SQLiteDatabase#query} builds from the given
+	 * arguments.
+	 */
+	public QueryPlan inspect(SQLiteDatabase db, String source, String table, String[] projection,
+			String selection, String[] selectionArgs, String groupBy, String orderBy, String limit) {
+		String sql = SQLiteQueryBuilder.buildQueryString(false, table, projection, selection, groupBy, null, orderBy,
+				limit);
+		return inspect(db, source, sql, selectionArgs);
+	}
+
+	private static List<String> explain(SQLiteDatabase db, String sql, String[] selectionArgs) {
+		List<String> details = new ArrayList<String>();
+		try {
+			Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+			try {
+				int detail = c.getColumnIndexOrThrow("detail");
+				while (c.moveToNext()) {
+					details.add(c.getString(detail));
+				}
+			} finally {
+				c.close();
+			}
+		} catch (SQLException e) {
+			Debug.error("Cannot explain %s: %s", sql, e.getMessage());
+		} catch (IllegalArgumentException e) {
+			// the arguments do not match the statement:
+			Debug.error("Cannot explain %s: %s", sql, e.getMessage());
+		}
+		return details;
+	}
+
+	/**
+	 * Records an execution of a statement.
+	 *
+	 * @param plan
+	 *            The plan returned by {@link #inspect}.
+	 * @param nanos
+	 *            The time it has taken to execute the statement.
+	 */
+	public void record(QueryPlan plan, long nanos) {
+		plan.record(nanos);
+	}
+
+	/**
+	 * @return all plans, the ones that took the most time in total first.
+	 */
+	public List<QueryPlan> getPlans() {
+		List<QueryPlan> plans = new ArrayList<QueryPlan>(mPlans.values());
+		Collections.sort(plans, BY_TOTAL_TIME);
+		return plans;
+	}
+
+	/**
+	 * @return the plans with table scans or temporary B-trees, the ones that
+	 *         took the most time in total first.
+	 */
+	public List<QueryPlan> getProblematicPlans() {
+		List<QueryPlan> plans = new ArrayList<QueryPlan>();
+		for (QueryPlan p : mPlans.values()) {
+			if (p.isProblematic()) {
+				plans.add(p);
+			}
+		}
+		Collections.sort(plans, BY_TOTAL_TIME);
+		return plans;
+	}
+
+	/**
+	 * @return the number of executed full table scans, i.e. the table scans
+	 *         of each plan times its executions.
+	 */
+	public long getTableScanCount() {
+		long count = 0L;
+		for (QueryPlan p : mPlans.values()) {
+			count += p.getTableScans() * p.getExecutions();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of executed temporary B-trees.
+	 */
+	public long getTempBTreeCount() {
+		long count = 0L;
+		for (QueryPlan p : mPlans.values()) {
+			count += p.getTempBTrees() * p.getExecutions();
+		}
+		return count;
+	}
+
+	/**
+	 * Logs all problematic plans.
+	 */
+	public void log() {
+		for (QueryPlan p : getProblematicPlans()) {
+			Debug.warning("Query plan: %s", p);
+		}
+	}
+
+	/**
+	 * Forgets all plans, e.g. after indexes have been added.
+	 */
+	public void clear() {
+		mPlans.clear();
+	}
+
+}
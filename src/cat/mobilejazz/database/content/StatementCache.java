@@ -0,0 +1,294 @@
+package cat.mobilejazz.database.content;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import cat.mobilejazz.utilities.debug.Debug;
+
+/**
+ * A cache of compiled {@link SQLiteStatement}s for the write operations of a
+ * single database. Statements are keyed by operation, table, column set and
+ * WHERE clause and are evicted in least recently used order. Values are bound
+ * by column index, so a write through this cache neither rebuilds nor
+ * recompiles its sql once the statement is cached.
+ *
+ * A statement is removed from the cache while it is being executed. Threads
+ * that request the same statement concurrently therefore compile their own
+ * copy instead of sharing the bindings of another thread.
+ *
+ * On platforms prior to {@link Build.VERSION_CODES#HONEYCOMB} updates and
+ * deletes fall back to {@link SQLiteDatabase#update} and
+ * {@link SQLiteDatabase#delete} as {@link SQLiteStatement#executeUpdateDelete()}
+ * is not available.
+ */
+public class StatementCache {
+
+	private static final String[] CONFLICT_VALUES = new String[] { "", " OR ROLLBACK", " OR ABORT", " OR FAIL",
+			" OR IGNORE", " OR REPLACE" };
+
+	private static final char OP_INSERT = 'I';
+	private static final char OP_UPDATE = 'U';
+	private static final char OP_DELETE = 'D';
+
+	private final SQLiteDatabase mDb;
+	private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+	public StatementCache(SQLiteDatabase db, final int capacity) {
+		mDb = db;
+		mStatements = new LinkedHashMap<String, SQLiteStatement>(capacity, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+				if (size() > capacity) {
+					eldest.getValue().close();
+					return true;
+				} else {
+					return false;
+				}
+			}
+
+		};
+	}
+
+	public SQLiteDatabase getDatabase() {
+		return mDb;
+	}
+
+	private static boolean supportsUpdateDelete() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	private static String[] getColumns(ContentValues values) {
+		String[] columns = values.keySet().toArray(new String[values.size()]);
+		// the order of the key set differs between equal column sets:
+		Arrays.sort(columns);
+		return columns;
+	}
+
+	private static String getKey(char operation, int conflictAlgorithm, String table, String[] columns,
+			String whereClause) {
+		StringBuilder key = new StringBuilder();
+		key.append(operation).append(conflictAlgorithm).append(table);
+		if (columns != null) {
+			for (String c : columns) {
+				key.append(',').append(c);
+			}
+		}
+		if (whereClause != null) {
+			key.append('|').append(whereClause);
+		}
+		return key.toString();
+	}
+
+	private static String getInsertSql(String table, String[] columns, int conflictAlgorithm) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("INSERT").append(CONFLICT_VALUES[conflictAlgorithm]).append(" INTO ").append(table);
+		if (columns.length == 0) {
+			sql.append(" DEFAULT VALUES");
+		} else {
+			sql.append(" (");
+			for (int i = 0; i < columns.length; ++i) {
+				if (i > 0) {
+					sql.append(',');
+				}
+				sql.append(columns[i]);
+			}
+			sql.append(") VALUES (?");
+			for (int i = 1; i < columns.length; ++i) {
+				sql.append(",?");
+			}
+			sql.append(')');
+		}
+		return sql.toString();
+	}
+
+	private static String getUpdateSql(String table, String[] columns, String whereClause, int conflictAlgorithm) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("UPDATE").append(CONFLICT_VALUES[conflictAlgorithm]).append(' ').append(table).append(" SET ");
+		for (int i = 0; i < columns.length; ++i) {
+			if (i > 0) {
+				sql.append(',');
+			}
+			sql.append(columns[i]).append("=?");
+		}
+		appendWhere(sql, whereClause);
+		return sql.toString();
+	}
+
+	private static String getDeleteSql(String table, String whereClause) {
+		StringBuilder sql = new StringBuilder();
+		sql.append("DELETE FROM ").append(table);
+		appendWhere(sql, whereClause);
+		return sql.toString();
+	}
+
+	private static void appendWhere(StringBuilder sql, String whereClause) {
+		if (whereClause != null && whereClause.length() > 0) {
+			sql.append(" WHERE ").append(whereClause);
+		}
+	}
+
+	/**
+	 * Takes the statement for the given key out of the cache. It has to be
+	 * returned by {@link #release(String, SQLiteStatement)} after it has been
+	 * executed.
+	 */
+	private SQLiteStatement acquire(String key) {
+		synchronized (mStatements) {
+			return mStatements.remove(key);
+		}
+	}
+
+	private void release(String key, SQLiteStatement statement) {
+		statement.clearBindings();
+		SQLiteStatement previous;
+		synchronized (mStatements) {
+			previous = mStatements.put(key, statement);
+		}
+		if (previous != null) {
+			// another thread has compiled the same statement in the meantime:
+			previous.close();
+		}
+	}
+
+	private static int bind(SQLiteStatement statement, int index, String[] columns, ContentValues values) {
+		for (String c : columns) {
+			DatabaseUtils.bindObjectToProgram(statement, index++, values.get(c));
+		}
+		return index;
+	}
+
+	private static int bind(SQLiteStatement statement, int index, Object[] args) {
+		if (args != null) {
+			for (Object arg : args) {
+				DatabaseUtils.bindObjectToProgram(statement, index++, arg);
+			}
+		}
+		return index;
+	}
+
+	private static String[] toStringArray(Object[] args) {
+		if (args == null) {
+			return null;
+		}
+		String[] result = new String[args.length];
+		for (int i = 0; i < args.length; ++i) {
+			result[i] = (args[i] == null) ? null : String.valueOf(args[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Equivalent to {@link SQLiteDatabase#insert(String, String, ContentValues)}
+	 * . Errors are logged and reported as {@code -1}.
+	 *
+	 * @return the row id of the newly inserted row or {@code -1} if an error
+	 *         occurred.
+	 */
+	public long insert(String table, ContentValues values) {
+		try {
+			return insertWithOnConflict(table, values, SQLiteDatabase.CONFLICT_NONE);
+		} catch (SQLException e) {
+			Debug.error("Error inserting %s into %s: %s", values, table, e.getMessage());
+			return -1L;
+		}
+	}
+
+	/**
+	 * Equivalent to
+	 * {@link SQLiteDatabase#insertWithOnConflict(String, String, ContentValues, int)}
+	 * .
+	 *
+	 * @return the row id of the newly inserted row or {@code -1} if no row was
+	 *         inserted, e.g. because it was ignored due to a conflict.
+	 */
+	public long insertWithOnConflict(String table, ContentValues values, int conflictAlgorithm) {
+		String[] columns = getColumns(values);
+		String key = getKey(OP_INSERT, conflictAlgorithm, table, columns, null);
+		SQLiteStatement statement = acquire(key);
+		if (statement == null) {
+			statement = mDb.compileStatement(getInsertSql(table, columns, conflictAlgorithm));
+		}
+		try {
+			bind(statement, 1, columns, values);
+			return statement.executeInsert();
+		} finally {
+			release(key, statement);
+		}
+	}
+
+	/**
+	 * Equivalent to
+	 * {@link SQLiteDatabase#update(String, ContentValues, String, String[])}
+	 * except that the arguments of the where clause are bound with their
+	 * respective type.
+	 *
+	 * @return the number of rows affected.
+	 */
+	public int update(String table, ContentValues values, String whereClause, Object[] whereArgs) {
+		if (values == null || values.size() == 0) {
+			throw new IllegalArgumentException("Empty values");
+		}
+		if (!supportsUpdateDelete()) {
+			return mDb.update(table, values, whereClause, toStringArray(whereArgs));
+		}
+		String[] columns = getColumns(values);
+		String key = getKey(OP_UPDATE, SQLiteDatabase.CONFLICT_NONE, table, columns, whereClause);
+		SQLiteStatement statement = acquire(key);
+		if (statement == null) {
+			statement = mDb.compileStatement(getUpdateSql(table, columns, whereClause, SQLiteDatabase.CONFLICT_NONE));
+		}
+		try {
+			bind(statement, bind(statement, 1, columns, values), whereArgs);
+			return statement.executeUpdateDelete();
+		} finally {
+			release(key, statement);
+		}
+	}
+
+	/**
+	 * Equivalent to {@link SQLiteDatabase#delete(String, String, String[])}
+	 * except that the arguments of the where clause are bound with their
+	 * respective type.
+	 *
+	 * @return the number of rows affected.
+	 */
+	public int delete(String table, String whereClause, Object[] whereArgs) {
+		if (!supportsUpdateDelete()) {
+			return mDb.delete(table, whereClause, toStringArray(whereArgs));
+		}
+		String key = getKey(OP_DELETE, SQLiteDatabase.CONFLICT_NONE, table, null, whereClause);
+		SQLiteStatement statement = acquire(key);
+		if (statement == null) {
+			statement = mDb.compileStatement(getDeleteSql(table, whereClause));
+		}
+		try {
+			bind(statement, 1, whereArgs);
+			return statement.executeUpdateDelete();
+		} finally {
+			release(key, statement);
+		}
+	}
+
+	/**
+	 * Closes all cached statements.
+	 */
+	public void clear() {
+		synchronized (mStatements) {
+			for (SQLiteStatement statement : mStatements.values()) {
+				statement.close();
+			}
+			mStatements.clear();
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+package cat.mobilejazz.database.content;
+
+import java.util.Date;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import cat.mobilejazz.database.SQLUtils;
+
+/**
+ * Stores the sync token of each {@link CollectionFilter} that has been
+ * updated with a {@link DeltaDataAdapter}. The token is opaque to the
+ * database, e.g. a server cursor, an ETag or the maximum modification date
+ * seen so far. It is written in the same transaction as the data it refers
+ * to.
+ *
+ * The table is local, so it does not need to be part of the
+ * {@link cat.mobilejazz.database.Database} definition. The
+ * {@link DataProvider} creates it once when it opens a database (see
+ * {@link #createTable(SQLiteDatabase)}).
+ */
+public class SyncState {
+
+	public static final String TABLE_NAME = "db_sync_state";
+
+	/**
+	 * The key of the filter (see {@link CollectionFilter#getSyncKey()}).
+	 */
+	public static final String COLUMN_KEY = "filter_key";
+
+	public static final String COLUMN_TOKEN = "sync_token";
+
+	/**
+	 * The time when the token was stored.
+	 */
+	public static final String COLUMN_TIMESTAMP = "updated_at";
+
+	/**
+	 * Creates the table unless it exists already.
+	 */
+	static void createTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + COLUMN_KEY + " TEXT PRIMARY KEY, "
+				+ COLUMN_TOKEN + " TEXT, " + COLUMN_TIMESTAMP + " TEXT)");
+	}
+
+	/**
+	 * @return the token stored for the given filter or {@code null} if the
+	 *         filter needs a full update.
+	 */
+	public static String getToken(SQLiteDatabase db, CollectionFilter filter) {
+		Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_TOKEN }, COLUMN_KEY + " = ?",
+				new String[] { filter.getSyncKey() }, null, null, null);
+		try {
+			return (c.moveToFirst()) ? c.getString(0) : null;
+		} finally {
+			c.close();
+		}
+	}
+
+	public static void setToken(SQLiteDatabase db, CollectionFilter filter, String token) {
+		ContentValues values = new ContentValues();
+		values.put(COLUMN_KEY, filter.getSyncKey());
+		values.put(COLUMN_TOKEN, token);
+		values.put(COLUMN_TIMESTAMP, SQLUtils.formatTimestamp(new Date()));
+		db.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	/**
+	 * Removes the token of the given filter, so the next update is a full one.
+	 */
+	public static void clearToken(SQLiteDatabase db, CollectionFilter filter) {
+		db.delete(TABLE_NAME, COLUMN_KEY + " = ?", new String[] { filter.getSyncKey() });
+	}
+
+}
@@ -0,0 +1,231 @@
+package cat.mobilejazz.database.content;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.database.sqlite.SQLiteTransactionListener;
+
+/**
+ * Allocates unique ids for columns marked with the
+ * {@link cat.mobilejazz.database.annotation.UID} annotation. Ids are reserved
+ * in blocks per table-column pair (hi/lo). The end of the last reserved block
+ * is stored in a local table of the database ({@value #TABLE_NAME}) as part of
+ * the transaction that requests the block. Within a block, values are handed
+ * out from an in-memory counter without any locking.
+ *
+ * The sequence of values is defined by {@link DataProvider#firstUIDValue()}
+ * and {@link DataProvider#nextUIDValue(long)}. Values that have been stored by
+ * a previous version in the shared preferences are picked up as the start of
+ * the sequence.
+ *
+ * Blocks are only reserved outside of transactions, so a block is never used
+ * before its end has been committed. If the calling thread holds a
+ * transaction and the current block is exhausted, a single value is reserved
+ * as part of that transaction instead and is not shared with other callers.
+ * If the transaction is rolled back, the value is skipped by this instance,
+ * which is harmless, and the stored end is advanced again by the next
+ * reservation.
+ */
+public class UIDAllocator {
+
+	public static final String TABLE_NAME = "db_uids";
+	public static final String COLUMN_KEY = "uid_key";
+	public static final String COLUMN_NEXT_VALUE = "next_value";
+
+	private static final String PREFERENCES_NAME = "uid";
+
+	private static class Block {
+
+		private final long[] values;
+		private final AtomicInteger next;
+
+		public Block(long[] values) {
+			this.values = values;
+			this.next = new AtomicInteger();
+		}
+
+	}
+
+	private class Slot implements SQLiteTransactionListener {
+
+		private final String key;
+		private final AtomicReference<Block> block;
+
+		/**
+		 * The value following the last reserved block or {@code null} if no
+		 * block has been reserved yet by this instance.
+		 */
+		private Long nextValue;
+		private Block pending;
+
+		public Slot(String key) {
+			this.key = key;
+			this.block = new AtomicReference<Block>();
+		}
+
+		public long next(SQLiteDatabase db) {
+			while (true) {
+				Block b = block.get();
+				if (b != null) {
+					int i = b.next.getAndIncrement();
+					if (i < b.values.length) {
+						return b.values[i];
+					}
+				}
+				synchronized (this) {
+					if (block.get() == b) {
+						if (db.inTransaction()) {
+							// the enclosing transaction may still be rolled
+							// back, so its reservation must not be shared:
+							return reserveSingle(db);
+						}
+						block.set(reserve(db));
+					}
+				}
+			}
+		}
+
+		private void store(SQLiteDatabase db, long value) {
+			SQLiteStatement statement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_NAME + " (" + COLUMN_KEY
+					+ ", " + COLUMN_NEXT_VALUE + ") VALUES (?, ?)");
+			try {
+				statement.bindString(1, key);
+				statement.bindLong(2, value);
+				statement.execute();
+			} finally {
+				statement.close();
+			}
+		}
+
+		/**
+		 * Reserves one value within the transaction of the calling thread.
+		 */
+		private long reserveSingle(SQLiteDatabase db) {
+			long value = (nextValue != null) ? nextValue : readNextValue(db, key);
+			long next = mProvider.nextUIDValue(value);
+			store(db, next);
+			nextValue = next;
+			return value;
+		}
+
+		private Block reserve(SQLiteDatabase db) {
+			long value = (nextValue != null) ? nextValue : readNextValue(db, key);
+			long[] values = new long[mBlockSize];
+			for (int i = 0; i < values.length; ++i) {
+				values[i] = value;
+				value = mProvider.nextUIDValue(value);
+			}
+			Block b = new Block(values);
+			pending = b;
+			db.beginTransactionWithListener(this);
+			try {
+				store(db, value);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			nextValue = value;
+			return b;
+		}
+
+		@Override
+		public void onBegin() {
+		}
+
+		@Override
+		public void onCommit() {
+			pending = null;
+		}
+
+		@Override
+		public void onRollback() {
+			// the reservation was not stored. Make sure, the block is not used:
+			block.compareAndSet(pending, null);
+			pending = null;
+			nextValue = null;
+		}
+
+	}
+
+	private final DataProvider mProvider;
+	private final int mBlockSize;
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Slot>> mSlots;
+
+	private volatile boolean mTableCreated;
+
+	public UIDAllocator(DataProvider provider, int blockSize) {
+		mProvider = provider;
+		mBlockSize = blockSize;
+		mSlots = new ConcurrentHashMap<String, ConcurrentHashMap<String, Slot>>();
+	}
+
+	private Slot getSlot(String table, String column) {
+		ConcurrentHashMap<String, Slot> columns = mSlots.get(table);
+		if (columns == null) {
+			columns = new ConcurrentHashMap<String, Slot>();
+			ConcurrentHashMap<String, Slot> previous = mSlots.putIfAbsent(table, columns);
+			if (previous != null) {
+				columns = previous;
+			}
+		}
+		Slot slot = columns.get(column);
+		if (slot == null) {
+			slot = new Slot(table + ":" + column);
+			Slot previous = columns.putIfAbsent(column, slot);
+			if (previous != null) {
+				slot = previous;
+			}
+		}
+		return slot;
+	}
+
+	private void ensureTable(SQLiteDatabase db) {
+		if (!mTableCreated) {
+			db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + COLUMN_KEY + " TEXT PRIMARY KEY, "
+					+ COLUMN_NEXT_VALUE + " INTEGER)");
+			mTableCreated = true;
+		}
+	}
+
+	private long readNextValue(SQLiteDatabase db, String key) {
+		ensureTable(db);
+		Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NEXT_VALUE }, COLUMN_KEY + " = ?", new String[] { key },
+				null, null, null);
+		try {
+			if (c.moveToFirst()) {
+				return c.getLong(0);
+			}
+		} finally {
+			c.close();
+		}
+		SharedPreferences pref = mProvider.getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		return pref.getLong(key, mProvider.firstUIDValue());
+	}
+
+	/**
+	 * Gets a new unique id value for the given column. If the current block is
+	 * exhausted, a new one is reserved using the given database. If the
+	 * calling thread holds a transaction on the database, only a single value
+	 * is reserved as part of it. Such a value must only be used within the
+	 * same transaction.
+	 *
+	 * @param db
+	 *            The database where the column resides in.
+	 * @param table
+	 *            The table where the column resides in.
+	 * @param column
+	 *            The column for which to create a uid.
+	 * @return A {@link long} value unique for the given table-column
+	 *         combination.
+	 */
+	public long next(SQLiteDatabase db, String table, String column) {
+		return getSlot(table, column).next(db);
+	}
+
+}
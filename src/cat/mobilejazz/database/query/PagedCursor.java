@@ -0,0 +1,293 @@
+package cat.mobilejazz.database.query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.database.AbstractCursor;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.BaseColumns;
+
+/**
+ * A cursor over the result of a {@link Select} that reads the rows page by
+ * page when they are accessed. Pages are read with keyset pagination (see
+ * {@link Select.Builder#seekAfter(String, Object, long)}), so the rows are
+ * sorted by a key column and then by {@link BaseColumns#_ID}. Only the pages
+ * around the current position are kept open, the others are closed and read
+ * again if they are accessed later.
+ *
+ * For each page that has been read, the key of its last row is kept, so a page
+ * can be read again without reading the pages before. Moving far beyond the
+ * pages that have been read so far reads all pages in between once.
+ *
+ * The number of rows is counted when the cursor is created. If the table
+ * changes afterwards, pages may be shorter or overlap. Use a
+ * {@link PagedCursorLoader} to create a new cursor on each change.
+ *
+ * The key of a bookmark is kept with its type (integer, real or text), but it
+ * is passed to the provider as a selection argument, i.e. as text. The key
+ * column therefore needs numeric or text affinity, so SQLite converts the
+ * argument before comparing. A column without affinity, e.g. an expression
+ * of a view, would compare every number as smaller than the argument.
+ *
+ * Pages other than the first one are read by {@link #onMove(int, int)}, i.e.
+ * on the thread that moves the cursor. If that is the UI thread, each new
+ * page is a provider query on the UI thread.
+ */
+public class PagedCursor extends AbstractCursor {
+
+	/**
+	 * The number of pages before and after the current one that are kept
+	 * open.
+	 */
+	public static final int DEFAULT_RETAINED_PAGES = 2;
+
+	/**
+	 * The key of the last row of a page.
+	 */
+	private static class Bookmark {
+
+		private final Object value;
+		private final long id;
+
+		public Bookmark(Object value, long id) {
+			this.value = value;
+			this.id = id;
+		}
+
+	}
+
+	private final ContentResolver mResolver;
+	private final Select mSelect;
+	private final String mKeyColumn;
+	private final int mPageSize;
+	private final int mRetainedPages;
+	private final int mCount;
+	private final Map<Integer, Cursor> mPages;
+	private final List<Bookmark> mBookmarks;
+	private String[] mColumns;
+	private Cursor mCurrent;
+
+	public PagedCursor(ContentResolver resolver, Select select, String keyColumn, int pageSize) {
+		this(resolver, select, keyColumn, pageSize, DEFAULT_RETAINED_PAGES);
+	}
+
+	/**
+	 * Counts the rows and reads the first page.
+	 *
+	 * @param select
+	 *            The rows to read. Its sort order is ignored. If it has a
+	 *            projection, the projection has to include the key column and
+	 *            {@link BaseColumns#_ID}.
+	 * @param keyColumn
+	 *            The column that the rows are sorted by.
+	 * @param pageSize
+	 *            The number of rows of a page.
+	 * @param retainedPages
+	 *            The number of pages before and after the current one that
+	 *            are kept open.
+	 */
+	public PagedCursor(ContentResolver resolver, Select select, String keyColumn, int pageSize, int retainedPages) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+		}
+		mResolver = resolver;
+		mSelect = select;
+		mKeyColumn = keyColumn;
+		mPageSize = pageSize;
+		mRetainedPages = Math.max(retainedPages, 0);
+		mPages = new HashMap<Integer, Cursor>();
+		mBookmarks = new ArrayList<Bookmark>();
+		mCount = count();
+		mColumns = getPage(0).getColumnNames();
+		setNotificationUri(resolver, select.getUri());
+	}
+
+	private int count() {
+		Cursor c = mSelect.buildUpon().projection("count(*)").sort((String) null).build().query(mResolver);
+		try {
+			return (c.moveToFirst()) ? c.getInt(0) : 0;
+		} finally {
+			c.close();
+		}
+	}
+
+	private Cursor readPage(int page) {
+		Select.Builder b = mSelect.buildUpon().pageSize(mPageSize);
+		if (page == 0) {
+			b.sortByKey(mKeyColumn);
+		} else {
+			Bookmark previous = mBookmarks.get(page - 1);
+			b.seekAfter(mKeyColumn, previous.value, previous.id);
+		}
+		Cursor c = b.build().query(mResolver);
+		if (page == mBookmarks.size() && c.moveToLast()) {
+			Object value = readKey(c, c.getColumnIndexOrThrow(mKeyColumn));
+			mBookmarks.add(new Bookmark(value, c.getLong(c.getColumnIndexOrThrow(BaseColumns._ID))));
+		}
+		return c;
+	}
+
+	/**
+	 * @return the key of the current row as a {@link Long}, {@link Double} or
+	 *         {@link String}, so a number is not compared in the formatting
+	 *         of {@link Cursor#getString(int)}.
+	 */
+	private static Object readKey(Cursor c, int column) {
+		if (c.isNull(column)) {
+			return null;
+		} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			switch (c.getType(column)) {
+			case Cursor.FIELD_TYPE_INTEGER:
+				return c.getLong(column);
+			case Cursor.FIELD_TYPE_FLOAT:
+				return c.getDouble(column);
+			default:
+				return c.getString(column);
+			}
+		} else if (c instanceof AbstractWindowedCursor) {
+			AbstractWindowedCursor w = (AbstractWindowedCursor) c;
+			if (w.isLong(column)) {
+				return w.getLong(column);
+			} else if (w.isFloat(column)) {
+				return w.getDouble(column);
+			} else {
+				return w.getString(column);
+			}
+		} else {
+			return c.getString(column);
+		}
+	}
+
+	/**
+	 * @return the open cursor of the given page or {@code null} if the rows
+	 *         end before it. Pages before it that have never been read are
+	 *         read on the way.
+	 */
+	private Cursor getPage(int page) {
+		Cursor c = mPages.get(page);
+		if (c == null) {
+			// the bookmarks of the pages in between are needed first:
+			while (mBookmarks.size() < page) {
+				int p = mBookmarks.size();
+				readPage(p).close();
+				if (mBookmarks.size() == p) {
+					// page p is empty
+					break;
+				}
+			}
+			if (page > mBookmarks.size()) {
+				return null;
+			}
+			c = readPage(page);
+			mPages.put(page, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Closes the pages that are too far away from the given one.
+	 */
+	private void releasePages(int page) {
+		Iterator<Map.Entry<Integer, Cursor>> i = mPages.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Integer, Cursor> e = i.next();
+			if (Math.abs(e.getKey() - page) > mRetainedPages) {
+				e.getValue().close();
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of pages that are currently open.
+	 */
+	public int getOpenPageCount() {
+		return mPages.size();
+	}
+
+	/**
+	 * Reads the page of the new position if it is not open. This queries the
+	 * provider on the calling thread.
+	 */
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		int page = newPosition / mPageSize;
+		Cursor c = getPage(page);
+		releasePages(page);
+		mCurrent = c;
+		// pages may be shorter if rows have been deleted after counting:
+		return c != null && c.moveToPosition(newPosition % mPageSize);
+	}
+
+	@Override
+	public int getCount() {
+		return mCount;
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return mColumns;
+	}
+
+	@Override
+	public String getString(int column) {
+		return mCurrent.getString(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return mCurrent.getShort(column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return mCurrent.getInt(column);
+	}
+
+	@Override
+	public long getLong(int column) {
+		return mCurrent.getLong(column);
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return mCurrent.getFloat(column);
+	}
+
+	@Override
+	public double getDouble(int column) {
+		return mCurrent.getDouble(column);
+	}
+
+	@Override
+	public byte[] getBlob(int column) {
+		return mCurrent.getBlob(column);
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return mCurrent.isNull(column);
+	}
+
+	@Override
+	public int getType(int column) {
+		return mCurrent.getType(column);
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		for (Cursor c : mPages.values()) {
+			c.close();
+		}
+		mPages.clear();
+		mCurrent = null;
+	}
+
+}
@@ -0,0 +1,95 @@
+package cat.mobilejazz.database.query;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+/**
+ * A loader for a {@link PagedCursor}. Like a
+ * {@link android.support.v4.content.CursorLoader}, it loads a new cursor
+ * whenever the data changes, but only the row count and the first page are
+ * read in the background. The other pages are read when they are accessed,
+ * on the thread that accesses them (see {@link PagedCursor}).
+ */
+public class PagedCursorLoader extends AsyncTaskLoader<Cursor> {
+
+	private final ForceLoadContentObserver mObserver;
+	private final Select mSelect;
+	private final String mKeyColumn;
+	private final int mPageSize;
+
+	private Cursor mCursor;
+
+	/**
+	 * @see PagedCursor#PagedCursor(android.content.ContentResolver, Select,
+	 *      String, int)
+	 */
+	public PagedCursorLoader(Context context, Select select, String keyColumn, int pageSize) {
+		super(context);
+		mObserver = new ForceLoadContentObserver();
+		mSelect = select;
+		mKeyColumn = keyColumn;
+		mPageSize = pageSize;
+	}
+
+	@Override
+	public Cursor loadInBackground() {
+		Cursor cursor = new PagedCursor(getContext().getContentResolver(), mSelect, mKeyColumn, mPageSize);
+		cursor.registerContentObserver(mObserver);
+		return cursor;
+	}
+
+	@Override
+	public void deliverResult(Cursor cursor) {
+		if (isReset()) {
+			if (cursor != null) {
+				cursor.close();
+			}
+			return;
+		}
+		Cursor oldCursor = mCursor;
+		mCursor = cursor;
+
+		if (isStarted()) {
+			super.deliverResult(cursor);
+		}
+
+		if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()) {
+			oldCursor.close();
+		}
+	}
+
+	@Override
+	protected void onStartLoading() {
+		if (mCursor != null) {
+			deliverResult(mCursor);
+		}
+		if (takeContentChanged() || mCursor == null) {
+			forceLoad();
+		}
+	}
+
+	@Override
+	protected void onStopLoading() {
+		cancelLoad();
+	}
+
+	@Override
+	public void onCanceled(Cursor cursor) {
+		if (cursor != null && !cursor.isClosed()) {
+			cursor.close();
+		}
+	}
+
+	@Override
+	protected void onReset() {
+		super.onReset();
+		onStopLoading();
+
+		if (mCursor != null && !mCursor.isClosed()) {
+			mCursor.close();
+		}
+		mCursor = null;
+	}
+
+}
@@ -16,6 +16,7 @@ import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.provider.BaseColumns;
 import android.support.v4.content.CursorLoader;
 import cat.mobilejazz.database.SQLUtils;
 import cat.mobilejazz.database.content.DataProvider;
@@ -42,7 +43,9 @@ public class Select implements Parcelable {
 			mSelection = new ArrayList<String>();
 			if (s.selection != null) {
 				for (String constraint : s.selection.split(" AND ")) {
-					mSelection.add(constraint);
+					if (constraint.length() > 0) {
+						mSelection.add(constraint);
+					}
 				}
 			}
 			mSelectionArgs = new ArrayList<String>();
@@ -166,6 +169,58 @@ public class Select implements Parcelable {
 			return this;
 		}
 
+		/**
+		 * Sorts by the given column and then by {@link BaseColumns#_ID}, which
+		 * makes the order of all rows unique as required by
+		 * {@link #seekAfter(String, Object, long)}. Use this for the first
+		 * page of a keyset pagination.
+		 */
+		public Builder sortByKey(String column) {
+			mSortOrder = column + ", " + BaseColumns._ID;
+			return this;
+		}
+
+		/**
+		 * Restricts the result to the rows that follow the given row in the
+		 * order of {@link #sortByKey(String)} and sorts it accordingly. Unlike
+		 * an offset, this lets the database seek directly to the first row of
+		 * the next page (if there is an index on the column), so reading a
+		 * page does not become slower the further back it is.
+		 * 
+		 * @param column
+		 *            The column that the rows are sorted by.
+		 * @param value
+		 *            The value of the column in the last row of the previous
+		 *            page. May be {@code null}.
+		 * @param id
+		 *            The {@link BaseColumns#_ID} of the last row of the
+		 *            previous page.
+		 */
+		public Builder seekAfter(String column, Object value, long id) {
+			if (value == null) {
+				// null is the smallest value in SQLite:
+				mSelection.add(String.format("(%s IS NOT NULL OR %s > ?)", column, BaseColumns._ID));
+				mSelectionArgs.add(valueOf(id));
+			} else {
+				mSelection.add(String.format("(%s > ? OR (%s = ? AND %s > ?))", column, column, BaseColumns._ID));
+				mSelectionArgs.add(valueOf(value));
+				mSelectionArgs.add(valueOf(value));
+				mSelectionArgs.add(valueOf(id));
+			}
+			return sortByKey(column);
+		}
+
+		/**
+		 * Limits the number of rows of the result.
+		 * 
+		 * @see DataProvider#QUERY_KEY_LIMIT
+		 */
+		public Builder pageSize(int rows) {
+			mTable = mTable.buildUpon().appendQueryParameter(DataProvider.QUERY_KEY_LIMIT, String.valueOf(rows))
+					.build();
+			return this;
+		}
+
 		public Builder groupBy(String column) {
 			mTable = mTable.buildUpon().appendQueryParameter(DataProvider.QUERY_KEY_GROUP_BY, column).build();
 			return this;
@@ -236,6 +291,20 @@ public class Select implements Parcelable {
 		return new CursorLoader(context, table, projection, selection, selectionArgs, sortOrder);
 	}
 
+	/**
+	 * Creates a loader that reads the result page by page instead of loading
+	 * it at once. The sort order of this select is replaced by the given
+	 * column (see {@link PagedCursor}).
+	 * 
+	 * @param keyColumn
+	 *            The column that the rows are sorted by.
+	 * @param pageSize
+	 *            The number of rows of a page.
+	 */
+	public PagedCursorLoader newPagedCursorLoader(Context context, String keyColumn, int pageSize) {
+		return new PagedCursorLoader(context, this, keyColumn, pageSize);
+	}
+
 	public int delete(ContentResolver provider) {
 		return provider.delete(table, selection, selectionArgs);
 	}